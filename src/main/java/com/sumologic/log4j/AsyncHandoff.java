@@ -0,0 +1,353 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands log events over to a dedicated consumer thread through a preallocated ring of
+ * {@link MutableLogEvent} slots. A logging thread only claims a slot and copies the event into
+ * it; the consumer runs the {@link EventHandler} (layout, stack trace rendering, queueing).
+ *
+ * Slots are claimed with a CAS on the tail, as in {@link com.sumologic.log4j.queue.CostBoundedRingQueue}.
+ * When every slot is taken, logging threads wait for the consumer to free one, for as long as the
+ * handoff was created with, and are refused the slot after that. How the consumer waits for new
+ * events is up to the {@link WaitStrategy}.
+ *
+ * Once stopped, {@link #publish} refuses events and the caller handles them itself. The consumer
+ * only exits after every event published before that has been handled.
+ */
+class AsyncHandoff {
+
+    public static interface EventHandler {
+        public void onEvent(LogEvent event);
+    }
+
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    private final MutableLogEvent[] slots;
+    // sequences[i] == position  => slot i is free for the producer claiming position
+    // sequences[i] == position+1 => slot i holds the event published at position
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;     // only moved by the consumer
+    // Logging threads between checking that we are running and publishing their event
+    private final AtomicInteger publishers = new AtomicInteger(0);
+
+    private final EventHandler handler;
+    private final WaitStrategy waitStrategy;
+    private final long maxWaitNanos;    // For a free slot; negative to wait as long as it takes
+
+    private volatile boolean running = false;
+    private Thread consumer;
+
+    AsyncHandoff(int size, WaitStrategy waitStrategy, EventHandler handler) {
+        this(size, -1, waitStrategy, handler);
+    }
+
+    /**
+     * @param maxWaitMillis how long a logging thread waits for a free slot before {@link #publish}
+     *                      gives up; 0 not to wait, negative to wait as long as it takes
+     */
+    AsyncHandoff(int size, long maxWaitMillis, WaitStrategy waitStrategy, EventHandler handler) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Ring size must be at least 1");
+        }
+
+        // At least two slots: with one, "free for position + 1" and "holds position" look the same
+        int slotCount = Math.max(2, Integer.highestOneBit(size));
+        if (slotCount < size) {
+            slotCount <<= 1;
+        }
+
+        this.slots = new MutableLogEvent[slotCount];
+        this.sequences = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new MutableLogEvent();
+            sequences.set(i, i);
+        }
+        this.mask = slotCount - 1;
+        this.maxWaitNanos = maxWaitMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.waitStrategy = waitStrategy;
+        this.handler = handler;
+    }
+
+    public synchronized void start(String name) {
+        if (running) return;
+        running = true;
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, name);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stop the consumer thread once it has handled every event published so far.
+     */
+    public void stop() {
+        stop(System.currentTimeMillis() + STOP_TIMEOUT_MS);
+    }
+
+    /**
+     * Stop the consumer thread once it has handled every event published so far, waiting
+     * for it until <tt>deadline</tt> (epoch ms) at most.
+     */
+    public synchronized void stop(long deadline) {
+        if (!running) return;
+        running = false;
+        waitStrategy.signal();
+        try {
+            consumer.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (consumer.isAlive()) {
+            StatusLogger.getLogger().warn("Async handoff thread did not finish in time, " +
+                    (tail.get() - head) + " events left");
+        }
+        consumer = null;
+    }
+
+    /**
+     * Copy the event into a free slot, waiting for one if the ring is full.
+     * @return false if the handoff is stopped, or no slot freed up in time, and the event was not
+     *         taken
+     */
+    public boolean publish(LogEvent event) {
+        // Raised before checking running, so the consumer does not exit under our feet (see consume)
+        publishers.incrementAndGet();
+        try {
+            if (!running) {
+                return false;
+            }
+            long position = claimTail();
+            if (position < 0) {
+                return false;
+            }
+            int index = (int) position & mask;
+            slots[index].initFrom(event);
+            // A full volatile write, so that a consumer about to block sees it (see WaitStrategy)
+            sequences.set(index, position + 1);
+            waitStrategy.signal();
+            return true;
+        } finally {
+            publishers.decrementAndGet();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int size() {
+        return (int) Math.min(tail.get() - head, mask + 1);
+    }
+
+    boolean hasPending() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+
+    // The claimed position, or -1 if the handoff stopped or no slot freed up in time
+    private long claimTail() {
+        int attempts = 0;
+        long deadline = 0;
+        while (true) {
+            long position = tail.get();
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                // The ring is full: back off until the consumer frees a slot
+                if (!running) {
+                    return -1;
+                }
+                if (maxWaitNanos >= 0) {
+                    long now = System.nanoTime();
+                    if (attempts == 0) {
+                        deadline = now + maxWaitNanos;
+                    }
+                    if (now - deadline >= 0) {
+                        return -1;
+                    }
+                }
+                if (++attempts > 100) {
+                    LockSupport.parkNanos(1000);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    private void consume() {
+        int idleCount = 0;
+        while (true) {
+            if (hasPending()) {
+                idleCount = 0;
+                handleNext();
+            } else if (running) {
+                waitStrategy.await(this, idleCount++);
+            } else if (publishers.get() == 0 && !hasPending()) {
+                // Anyone publishing from now on sees we are stopped
+                break;
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void handleNext() {
+        long position = head;
+        int index = (int) position & mask;
+        MutableLogEvent event = slots[index];
+        try {
+            handler.onEvent(event);
+        } catch (Exception e) {
+            StatusLogger.getLogger().error("Unable to handle log event", e);
+        } finally {
+            event.clear();
+            head = position + 1;
+            sequences.lazySet(index, position + mask + 1);
+        }
+    }
+
+
+    /**
+     * How the consumer thread waits for events once the ring is empty.
+     */
+    public static abstract class WaitStrategy {
+
+        /**
+         * Wait a little for new events. <tt>idleCount</tt> is the number of consecutive calls
+         * that found nothing to do.
+         */
+        abstract void await(AsyncHandoff handoff, int idleCount);
+
+        /**
+         * Called by logging threads after publishing an event, and once when stopping.
+         */
+        void signal() {
+        }
+    }
+
+    /**
+     * Parks the consumer on a condition; logging threads only take the lock when it is parked.
+     * Lowest CPU use, highest handoff latency. The default.
+     */
+    static class BlockingWaitStrategy extends WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+        private final AtomicBoolean signalNeeded = new AtomicBoolean(false);
+
+        @Override
+        void await(AsyncHandoff handoff, int idleCount) {
+            lock.lock();
+            try {
+                signalNeeded.set(true);
+                // Checked after raising the flag, so a publish, or stop, either shows up here or
+                // signals us; there is no need to wake up to look again
+                if (!handoff.hasPending() && handoff.running) {
+                    published.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void signal() {
+            if (signalNeeded.getAndSet(false)) {
+                lock.lock();
+                try {
+                    published.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Spins, then yields, then sleeps in short naps. Lower handoff latency than blocking,
+     * at the cost of some CPU while idle.
+     */
+    static class SleepingWaitStrategy extends WaitStrategy {
+        @Override
+        void await(AsyncHandoff handoff, int idleCount) {
+            if (idleCount < 100) {
+                // spin
+            } else if (idleCount < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(100000);
+            }
+        }
+    }
+
+    /**
+     * Spins, then yields the CPU. Low latency, but keeps a core busy while idle.
+     */
+    static class YieldingWaitStrategy extends WaitStrategy {
+        @Override
+        void await(AsyncHandoff handoff, int idleCount) {
+            if (idleCount >= 100) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Never gives up the CPU. Only for machines with a core to spare.
+     */
+    static class BusySpinWaitStrategy extends WaitStrategy {
+        @Override
+        void await(AsyncHandoff handoff, int idleCount) {
+        }
+    }
+}
@@ -26,25 +26,40 @@
 
 package com.sumologic.log4j;
 
+import com.sumologic.log4j.aggregation.AdaptiveBatchSizer;
 import com.sumologic.log4j.aggregation.SumoBufferFlusher;
+import com.sumologic.log4j.http.AsyncSumoHttpSender;
 import com.sumologic.log4j.http.ProxySettings;
 import com.sumologic.log4j.http.SumoHttpSender;
+import com.sumologic.log4j.queue.BufferWithBackpressure;
 import com.sumologic.log4j.queue.BufferWithEviction;
 import com.sumologic.log4j.queue.BufferWithFifoEviction;
+import com.sumologic.log4j.queue.BufferWithLevelEviction;
+import com.sumologic.log4j.queue.HeapPressureMonitor;
+import com.sumologic.log4j.queue.LockFreeBufferWithFifoEviction;
+import com.sumologic.log4j.queue.OffHeapBufferWithFifoEviction;
+import com.sumologic.log4j.queue.SpoolBufferWithFifoEviction;
+import com.sumologic.log4j.queue.StripedBufferWithFifoEviction;
+import org.apache.http.Consts;
 import org.apache.http.util.ExceptionUtils;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
-import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
-import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
-import org.apache.logging.log4j.core.util.Throwables;
+import org.apache.logging.log4j.message.SimpleMessage;
 import org.apache.logging.log4j.status.StatusLogger;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
 
@@ -56,6 +71,28 @@ import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
 @Plugin(name = "BufferedSumoLogic", category = "Core", elementType = "appender", printObject = true)
 public class BufferedSumoLogicAppender extends AbstractAppender {
 
+    public static final String DEFAULT_BUFFER = "default";
+    public static final String LOCK_FREE_BUFFER = "lockfree";
+    public static final String STRIPED_BUFFER = "striped";
+    public static final String OFF_HEAP_BUFFER = "offheap";
+    public static final String SPOOL_BUFFER = "spool";
+
+    public static final String FIFO_EVICTION = "fifo";
+    public static final String LEVEL_EVICTION = "level";
+
+    public static final String EVICT_ON_OVERFLOW = "evict";
+    public static final String BLOCK_ON_OVERFLOW = "block-with-timeout";
+    public static final String DROP_NEW_ON_OVERFLOW = "drop-new";
+
+    public static final String NO_COMPRESSION = "none";
+    public static final String GZIP_COMPRESSION = "gzip";
+    public static final String DEFLATE_COMPRESSION = "deflate";
+
+    public static final String BLOCKING_WAIT = "blocking";
+    public static final String SLEEPING_WAIT = "sleeping";
+    public static final String YIELDING_WAIT = "yielding";
+    public static final String BUSY_SPIN_WAIT = "busyspin";
+
     private String url;
 
     private String proxyHost;
@@ -69,78 +106,650 @@ public class BufferedSumoLogicAppender extends AbstractAppender {
     private int connectionTimeout;
     private int socketTimeout;
     private int retryInterval;        // Once a request fails, how often until we retry.
+    private int maxRetryInterval;     // Longest wait between retries, which double from retryInterval
+    private int maxRetryAttempts;     // Give up on a request after this many attempts, 0 for no limit
+    private long maxRetryTime;        // Give up on a request after this many ms, 0 for no limit
+    private int circuitBreakerThreshold;  // Failed attempts in a row after which requests are held back, 0 for never
+    private long circuitBreakerOpenTime;  // How long requests are held back before probing again (ms)
 
     private long messagesPerRequest;    // How many messages need to be in the queue before we flush
+    private long bytesPerRequest;       // How many bytes need to be in the queue before we flush, 0 for no limit
+    private boolean adaptiveBatchSize;  // Whether to tune messagesPerRequest from observed request latency
+    private long minMessagesPerRequest; // Lower bound for the tuned batch size
+    private long maxMessagesPerRequest; // Upper bound for the tuned batch size
+    private long maxRequestLatency;     // Requests slower than this halve the tuned batch size (ms)
     private long maxFlushInterval;    // Maximum interval between flushes (ms)
-    private long flushingAccuracy;      // How often the flushed thread looks into the message queue (ms)
     private String sourceName; // Name to stamp for querying with _sourceName
 
     private long maxQueueSizeBytes;
+    private String bufferType;        // Which BufferWithEviction implementation backs the queue
+    private String spoolDirectory;    // Where the spool buffer keeps its segment files
+    private String evictionPolicy;    // Which messages to drop first once the buffer is full
+    private String overflowStrategy;  // Whether to evict, block or drop the new message once the buffer is full
+    private long overflowTimeout;     // How long to block producers once the buffer is full (ms)
+    private boolean adaptiveCapacity; // Whether to shrink the buffer while the heap is nearly full
+    private int heapPressureThreshold; // Old generation usage after GC that counts as heap pressure (%)
+    private boolean lowGarbage;       // Whether to encode events into reusable per-thread buffers
+    private boolean async;            // Whether to format events on a dedicated thread
+    private int asyncRingSize;        // Number of preallocated event slots handed to that thread
+    private String waitStrategy;      // How that thread waits for events
+    private int stackTraceCacheSize;  // How many rendered stack traces to keep for reuse
+    private boolean collapseRepeatedStackTraces; // Whether to replace repeated stack traces with a reference
+    private int rateLimitEventsPerSecond; // Events each logger may queue per second, 0 for no limit
+    private int rateLimitBytesPerSecond;  // Bytes each logger may queue per second, 0 for no limit
+    private int rateLimitLoggerDepth;     // Logger name parts sharing a budget, 0 for the full name
+    private int rateLimitMaxLoggers;      // How many loggers to track budgets for
+    private SumoRoute[] routes = new SumoRoute[0]; // Rules picking the source name, category and host per event
+    private int senderConcurrency;    // How many requests may be in flight at once
+    private boolean sharedDispatcher; // Whether to flush on the JVM-wide scheduler and connection pool
+    private boolean asyncSender;      // Whether to send with non-blocking I/O from a single thread
+    private String compression;       // Content-Encoding to compress requests with
+    private int compressionLevel;     // Deflater level, from 0 (fastest) to 9 (smallest), or -1 for the default
+    private int compressionMinSize;   // Requests smaller than this are sent uncompressed (bytes)
+    private long shutdownTimeout;     // How long stopping may take to send what is buffered, unless log4j says (ms)
+    private boolean preserveSourceOrdering; // Whether requests of the same route must be sent in order
 
     private SumoHttpSender sender;
-    private SumoBufferFlusher flusher;
-    volatile private BufferWithEviction<String> queue;
+    volatile private SumoBufferFlusher flusher;
+    volatile private BufferWithEviction<byte[]> queue;
+    volatile private AsyncHandoff handoff;
+    volatile private StackTraceCache stackTraces;
+    volatile private LoggerRateLimiter rateLimiter;
+    private HeapPressureMonitor heapPressureMonitor;
+
+    // Reused by each logging thread when lowGarbage is set
+    private final ThreadLocal<GrowableByteBufferDestination> destinations =
+        new ThreadLocal<GrowableByteBufferDestination>() {
+            @Override
+            protected GrowableByteBufferDestination initialValue() {
+                return new GrowableByteBufferDestination(ENCODING_BUFFER_SIZE, MAX_RETAINED_ENCODING_BUFFER_SIZE);
+            }
+        };
 
     private BufferedSumoLogicAppender(String name, Layout layout, Filter filter, boolean ignoreExceptions) {
         super(name, filter, layout, ignoreExceptions);
     }
 
-    @PluginFactory
-    public static BufferedSumoLogicAppender createAppender(@PluginAttribute("name") String name,
-                                                           @PluginAttribute("url") String url,
-                                                           @PluginAttribute(value = "sourceName", defaultString = "Log4J-SumoObject") String sourceName,
-                                                           @PluginAttribute(value = "socketTimeout", defaultInt = 60000) int socketTimeout,
-                                                           @PluginAttribute(value = "connectionTimeout", defaultInt = 1000) int connectionTimeout,
-                                                           @PluginAttribute(value = "retryInterval",defaultInt = 10000) int retryInterval,
-                                                           @PluginAttribute(value = "flushingAccuracy", defaultInt = 250) int flushingAccuracy,
-                                                           @PluginAttribute(value = "maxFlushInterval", defaultInt = 10000) int maxFlushInterval,
-                                                           @PluginAttribute(value = "messagesPerRequest", defaultInt = 100) int messagesPerRequest,
-                                                           @PluginAttribute(value = "maxQueueSizeBytes", defaultInt = 1000000) int maxQueueSizeBytes,
-                                                           @PluginAttribute("proxyHost") String proxyHost,
-                                                           @PluginAttribute(value = "proxyPort", defaultInt = -1) int proxyPort,
-                                                           @PluginAttribute("proxyAuth") String proxyAuth,
-                                                           @PluginAttribute("proxyUser") String proxyUser,
-                                                           @PluginAttribute("proxyPassword") String proxyPassword,
-                                                           @PluginAttribute("proxyDomain") String proxyDomain,
-                                                           @PluginAttribute("ignoreExceptions") boolean ignoreExceptions,
-                                                           @PluginElement("Layout") Layout layout,
-                                                           @PluginElement("Filters") Filter filter) {
-
-        if (name == null) {
-            LOGGER.error("No name provided for SumoLogicAppender");
-            return null;
-        }
-        if (url == null) {
-            LOGGER.error("No url provided for SumoLogicAppender");
-            return null;
-        }
-        if (layout == null) {
-            layout = PatternLayout.createDefaultLayout();
-        }
-        BufferedSumoLogicAppender appender = new BufferedSumoLogicAppender(name, layout, filter, ignoreExceptions);
-        appender.setUrl(url);
-        if (sourceName != null) {
-            appender.setSourceName(sourceName);
-        }
-        appender.setSocketTimeout(socketTimeout);
-        appender.setConnectionTimeout(connectionTimeout);
-        appender.setRetryInterval(retryInterval);
-        appender.setFlushingAccuracy(flushingAccuracy);
-        appender.setMaxFlushInterval(maxFlushInterval);
-        appender.setMessagesPerRequest(messagesPerRequest);
-        appender.setMaxQueueSizeBytes(maxQueueSizeBytes);
-        appender.setProxyPort(proxyPort);
-        if (proxyHost != null)
-            appender.setProxyHost(proxyHost);
-        if (proxyAuth != null)
-            appender.setProxyAuth(proxyAuth);
-        if (proxyUser != null)
-            appender.setProxyUser(proxyUser);
-        if (proxyPassword != null)
-            appender.setProxyPassword(proxyPassword);
-        if (proxyDomain != null)
-            appender.setProxyDomain(proxyDomain);
-        return appender;
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds the appender from its configuration attributes. Any attribute left unset keeps its default.
+     */
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<BufferedSumoLogicAppender> {
+
+        @PluginBuilderAttribute
+        private String name;
+
+        @PluginBuilderAttribute
+        private String url;
+
+        @PluginBuilderAttribute
+        private String sourceName = "Log4J-SumoObject";
+
+        @PluginBuilderAttribute
+        private int socketTimeout = 60000;
+
+        @PluginBuilderAttribute
+        private int connectionTimeout = 1000;
+
+        @PluginBuilderAttribute
+        private int retryInterval = 10000;
+
+        @PluginBuilderAttribute
+        private int maxRetryInterval = 60000;
+
+        @PluginBuilderAttribute
+        private int maxRetryAttempts = 0;
+
+        @PluginBuilderAttribute
+        private int maxRetryTime = 0;
+
+        @PluginBuilderAttribute
+        private int circuitBreakerThreshold = 5;
+
+        @PluginBuilderAttribute
+        private int circuitBreakerOpenTime = 30000;
+
+        @PluginBuilderAttribute
+        private Long flushingAccuracy;          // Deprecated, only kept to warn that it is ignored
+
+        @PluginBuilderAttribute
+        private int maxFlushInterval = 10000;
+
+        @PluginBuilderAttribute
+        private int messagesPerRequest = 100;
+
+        @PluginBuilderAttribute
+        private int bytesPerRequest;
+
+        @PluginBuilderAttribute
+        private boolean adaptiveBatchSize;
+
+        @PluginBuilderAttribute
+        private int minMessagesPerRequest = 10;
+
+        @PluginBuilderAttribute
+        private int maxMessagesPerRequest = 10000;
+
+        @PluginBuilderAttribute
+        private int maxRequestLatency = 2000;
+
+        @PluginBuilderAttribute
+        private int maxQueueSizeBytes = 1000000;
+
+        @PluginBuilderAttribute
+        private String bufferType = DEFAULT_BUFFER;
+
+        @PluginBuilderAttribute
+        private String spoolDirectory;
+
+        @PluginBuilderAttribute
+        private String evictionPolicy = FIFO_EVICTION;
+
+        @PluginBuilderAttribute
+        private String overflowStrategy = EVICT_ON_OVERFLOW;
+
+        @PluginBuilderAttribute
+        private int overflowTimeout = 1000;
+
+        @PluginBuilderAttribute
+        private boolean adaptiveCapacity;
+
+        @PluginBuilderAttribute
+        private int heapPressureThreshold = HeapPressureMonitor.DEFAULT_THRESHOLD_PERCENT;
+
+        @PluginBuilderAttribute
+        private boolean lowGarbage;
+
+        @PluginBuilderAttribute
+        private boolean async;
+
+        @PluginBuilderAttribute
+        private int asyncRingSize = 4096;
+
+        @PluginBuilderAttribute
+        private String waitStrategy = BLOCKING_WAIT;
+
+        @PluginBuilderAttribute
+        private int stackTraceCacheSize = 256;
+
+        @PluginBuilderAttribute
+        private boolean collapseRepeatedStackTraces;
+
+        @PluginBuilderAttribute
+        private int rateLimitEventsPerSecond;
+
+        @PluginBuilderAttribute
+        private int rateLimitBytesPerSecond;
+
+        @PluginBuilderAttribute
+        private int rateLimitLoggerDepth;
+
+        @PluginBuilderAttribute
+        private int rateLimitMaxLoggers = 1000;
+
+        @PluginBuilderAttribute
+        private int senderConcurrency = 1;
+
+        @PluginBuilderAttribute
+        private boolean preserveSourceOrdering;
+
+        @PluginBuilderAttribute
+        private boolean sharedDispatcher;
+
+        @PluginBuilderAttribute
+        private boolean asyncSender;
+
+        @PluginBuilderAttribute
+        private String compression = NO_COMPRESSION;
+
+        @PluginBuilderAttribute
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+        @PluginBuilderAttribute
+        private int compressionMinSize = 1024;
+
+        @PluginBuilderAttribute
+        private int shutdownTimeout = 5000;
+
+        @PluginBuilderAttribute
+        private String proxyHost;
+
+        @PluginBuilderAttribute
+        private int proxyPort = -1;
+
+        @PluginBuilderAttribute
+        private String proxyAuth;
+
+        @PluginBuilderAttribute
+        private String proxyUser;
+
+        @PluginBuilderAttribute(sensitive = true)
+        private String proxyPassword;
+
+        @PluginBuilderAttribute
+        private String proxyDomain;
+
+        @PluginBuilderAttribute
+        private boolean ignoreExceptions;
+
+        @PluginElement("Routes")
+        private SumoRoute[] routes;
+
+        @PluginElement("Layout")
+        private Layout layout;
+
+        @PluginElement("Filters")
+        private Filter filter;
+
+        public Builder withName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder withUrl(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public Builder withSourceName(String sourceName) {
+            this.sourceName = sourceName;
+            return this;
+        }
+
+        public Builder withSocketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+
+        public Builder withConnectionTimeout(int connectionTimeout) {
+            this.connectionTimeout = connectionTimeout;
+            return this;
+        }
+
+        public Builder withRetryInterval(int retryInterval) {
+            this.retryInterval = retryInterval;
+            return this;
+        }
+
+        public Builder withMaxRetryInterval(int maxRetryInterval) {
+            this.maxRetryInterval = maxRetryInterval;
+            return this;
+        }
+
+        public Builder withMaxRetryAttempts(int maxRetryAttempts) {
+            this.maxRetryAttempts = maxRetryAttempts;
+            return this;
+        }
+
+        public Builder withMaxRetryTime(int maxRetryTime) {
+            this.maxRetryTime = maxRetryTime;
+            return this;
+        }
+
+        public Builder withCircuitBreakerThreshold(int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return this;
+        }
+
+        public Builder withCircuitBreakerOpenTime(int circuitBreakerOpenTime) {
+            this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+            return this;
+        }
+
+        /**
+         * @deprecated Producers signal the flusher as soon as a batch is due, so there is nothing left to poll.
+         */
+        @Deprecated
+        public Builder withFlushingAccuracy(long flushingAccuracy) {
+            this.flushingAccuracy = flushingAccuracy;
+            return this;
+        }
+
+        public Builder withMaxFlushInterval(int maxFlushInterval) {
+            this.maxFlushInterval = maxFlushInterval;
+            return this;
+        }
+
+        public Builder withMessagesPerRequest(int messagesPerRequest) {
+            this.messagesPerRequest = messagesPerRequest;
+            return this;
+        }
+
+        public Builder withBytesPerRequest(int bytesPerRequest) {
+            this.bytesPerRequest = bytesPerRequest;
+            return this;
+        }
+
+        public Builder withAdaptiveBatchSize(boolean adaptiveBatchSize) {
+            this.adaptiveBatchSize = adaptiveBatchSize;
+            return this;
+        }
+
+        public Builder withMinMessagesPerRequest(int minMessagesPerRequest) {
+            this.minMessagesPerRequest = minMessagesPerRequest;
+            return this;
+        }
+
+        public Builder withMaxMessagesPerRequest(int maxMessagesPerRequest) {
+            this.maxMessagesPerRequest = maxMessagesPerRequest;
+            return this;
+        }
+
+        public Builder withMaxRequestLatency(int maxRequestLatency) {
+            this.maxRequestLatency = maxRequestLatency;
+            return this;
+        }
+
+        public Builder withMaxQueueSizeBytes(int maxQueueSizeBytes) {
+            this.maxQueueSizeBytes = maxQueueSizeBytes;
+            return this;
+        }
+
+        public Builder withBufferType(String bufferType) {
+            this.bufferType = bufferType;
+            return this;
+        }
+
+        public Builder withSpoolDirectory(String spoolDirectory) {
+            this.spoolDirectory = spoolDirectory;
+            return this;
+        }
+
+        public Builder withEvictionPolicy(String evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        public Builder withOverflowStrategy(String overflowStrategy) {
+            this.overflowStrategy = overflowStrategy;
+            return this;
+        }
+
+        public Builder withOverflowTimeout(int overflowTimeout) {
+            this.overflowTimeout = overflowTimeout;
+            return this;
+        }
+
+        public Builder withAdaptiveCapacity(boolean adaptiveCapacity) {
+            this.adaptiveCapacity = adaptiveCapacity;
+            return this;
+        }
+
+        public Builder withHeapPressureThreshold(int heapPressureThreshold) {
+            this.heapPressureThreshold = heapPressureThreshold;
+            return this;
+        }
+
+        public Builder withLowGarbage(boolean lowGarbage) {
+            this.lowGarbage = lowGarbage;
+            return this;
+        }
+
+        public Builder withAsync(boolean async) {
+            this.async = async;
+            return this;
+        }
+
+        public Builder withAsyncRingSize(int asyncRingSize) {
+            this.asyncRingSize = asyncRingSize;
+            return this;
+        }
+
+        public Builder withWaitStrategy(String waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        public Builder withStackTraceCacheSize(int stackTraceCacheSize) {
+            this.stackTraceCacheSize = stackTraceCacheSize;
+            return this;
+        }
+
+        public Builder withCollapseRepeatedStackTraces(boolean collapseRepeatedStackTraces) {
+            this.collapseRepeatedStackTraces = collapseRepeatedStackTraces;
+            return this;
+        }
+
+        public Builder withRateLimitEventsPerSecond(int rateLimitEventsPerSecond) {
+            this.rateLimitEventsPerSecond = rateLimitEventsPerSecond;
+            return this;
+        }
+
+        public Builder withRateLimitBytesPerSecond(int rateLimitBytesPerSecond) {
+            this.rateLimitBytesPerSecond = rateLimitBytesPerSecond;
+            return this;
+        }
+
+        public Builder withRateLimitLoggerDepth(int rateLimitLoggerDepth) {
+            this.rateLimitLoggerDepth = rateLimitLoggerDepth;
+            return this;
+        }
+
+        public Builder withRateLimitMaxLoggers(int rateLimitMaxLoggers) {
+            this.rateLimitMaxLoggers = rateLimitMaxLoggers;
+            return this;
+        }
+
+        public Builder withSenderConcurrency(int senderConcurrency) {
+            this.senderConcurrency = senderConcurrency;
+            return this;
+        }
+
+        public Builder withPreserveSourceOrdering(boolean preserveSourceOrdering) {
+            this.preserveSourceOrdering = preserveSourceOrdering;
+            return this;
+        }
+
+        public Builder withSharedDispatcher(boolean sharedDispatcher) {
+            this.sharedDispatcher = sharedDispatcher;
+            return this;
+        }
+
+        public Builder withAsyncSender(boolean asyncSender) {
+            this.asyncSender = asyncSender;
+            return this;
+        }
+
+        public Builder withCompression(String compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder withCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        public Builder withCompressionMinSize(int compressionMinSize) {
+            this.compressionMinSize = compressionMinSize;
+            return this;
+        }
+
+        public Builder withShutdownTimeout(int shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+            return this;
+        }
+
+        public Builder withProxyHost(String proxyHost) {
+            this.proxyHost = proxyHost;
+            return this;
+        }
+
+        public Builder withProxyPort(int proxyPort) {
+            this.proxyPort = proxyPort;
+            return this;
+        }
+
+        public Builder withProxyAuth(String proxyAuth) {
+            this.proxyAuth = proxyAuth;
+            return this;
+        }
+
+        public Builder withProxyUser(String proxyUser) {
+            this.proxyUser = proxyUser;
+            return this;
+        }
+
+        public Builder withProxyPassword(String proxyPassword) {
+            this.proxyPassword = proxyPassword;
+            return this;
+        }
+
+        public Builder withProxyDomain(String proxyDomain) {
+            this.proxyDomain = proxyDomain;
+            return this;
+        }
+
+        public Builder withIgnoreExceptions(boolean ignoreExceptions) {
+            this.ignoreExceptions = ignoreExceptions;
+            return this;
+        }
+
+        public Builder withRoutes(SumoRoute[] routes) {
+            this.routes = routes;
+            return this;
+        }
+
+        public Builder withLayout(Layout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        public Builder withFilter(Filter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        @Override
+        public BufferedSumoLogicAppender build() {
+            if (name == null) {
+                LOGGER.error("No name provided for SumoLogicAppender");
+                return null;
+            }
+            if (url == null) {
+                LOGGER.error("No url provided for SumoLogicAppender");
+                return null;
+            }
+            BufferedSumoLogicAppender appender = new BufferedSumoLogicAppender(name,
+                    layout != null ? layout : PatternLayout.createDefaultLayout(), filter, ignoreExceptions);
+            appender.setUrl(url);
+            if (sourceName != null) {
+                appender.setSourceName(sourceName);
+            }
+            appender.setSocketTimeout(socketTimeout);
+            appender.setConnectionTimeout(connectionTimeout);
+            appender.setRetryInterval(retryInterval);
+            appender.setMaxRetryInterval(maxRetryInterval);
+            appender.setMaxRetryAttempts(maxRetryAttempts);
+            appender.setMaxRetryTime(maxRetryTime);
+            appender.setCircuitBreakerThreshold(circuitBreakerThreshold);
+            appender.setCircuitBreakerOpenTime(circuitBreakerOpenTime);
+            if (flushingAccuracy != null)
+                LOGGER.warn("flushingAccuracy is deprecated and no longer used; the buffer is flushed as soon as it is due");
+            appender.setMaxFlushInterval(maxFlushInterval);
+            appender.setMessagesPerRequest(messagesPerRequest);
+            appender.setBytesPerRequest(bytesPerRequest);
+            appender.setAdaptiveBatchSize(adaptiveBatchSize);
+            appender.setMinMessagesPerRequest(minMessagesPerRequest);
+            appender.setMaxMessagesPerRequest(maxMessagesPerRequest);
+            appender.setMaxRequestLatency(maxRequestLatency);
+            appender.setMaxQueueSizeBytes(maxQueueSizeBytes);
+            if (bufferType != null)
+                appender.setBufferType(bufferType);
+            if (spoolDirectory != null)
+                appender.setSpoolDirectory(spoolDirectory);
+            if (evictionPolicy != null)
+                appender.setEvictionPolicy(evictionPolicy);
+            if (overflowStrategy != null)
+                appender.setOverflowStrategy(overflowStrategy);
+            appender.setOverflowTimeout(overflowTimeout);
+            appender.setAdaptiveCapacity(adaptiveCapacity);
+            appender.setHeapPressureThreshold(heapPressureThreshold);
+            appender.setLowGarbage(lowGarbage);
+            appender.setAsync(async);
+            appender.setAsyncRingSize(asyncRingSize);
+            if (waitStrategy != null)
+                appender.setWaitStrategy(waitStrategy);
+            appender.setStackTraceCacheSize(stackTraceCacheSize);
+            appender.setCollapseRepeatedStackTraces(collapseRepeatedStackTraces);
+            appender.setRateLimitEventsPerSecond(rateLimitEventsPerSecond);
+            appender.setRateLimitBytesPerSecond(rateLimitBytesPerSecond);
+            appender.setRateLimitLoggerDepth(rateLimitLoggerDepth);
+            appender.setRateLimitMaxLoggers(rateLimitMaxLoggers);
+            appender.setSenderConcurrency(senderConcurrency);
+            appender.setPreserveSourceOrdering(preserveSourceOrdering);
+            appender.setSharedDispatcher(sharedDispatcher);
+            appender.setAsyncSender(asyncSender);
+            if (compression != null)
+                appender.setCompression(compression);
+            appender.setCompressionLevel(compressionLevel);
+            appender.setCompressionMinSize(compressionMinSize);
+            appender.setShutdownTimeout(shutdownTimeout);
+            if (routes != null) {
+                appender.setRoutes(routes);
+            }
+            appender.setProxyPort(proxyPort);
+            if (proxyHost != null)
+                appender.setProxyHost(proxyHost);
+            if (proxyAuth != null)
+                appender.setProxyAuth(proxyAuth);
+            if (proxyUser != null)
+                appender.setProxyUser(proxyUser);
+            if (proxyPassword != null)
+                appender.setProxyPassword(proxyPassword);
+            if (proxyDomain != null)
+                appender.setProxyDomain(proxyDomain);
+            return appender;
+        }
+    }
+
+    /**
+     * @deprecated Use {@link #newBuilder()}, which takes every attribute by name. flushingAccuracy is ignored.
+     */
+    @Deprecated
+    public static BufferedSumoLogicAppender createAppender(String name,
+                                                           String url,
+                                                           String sourceName,
+                                                           int socketTimeout,
+                                                           int connectionTimeout,
+                                                           int retryInterval,
+                                                           int flushingAccuracy,
+                                                           int maxFlushInterval,
+                                                           int messagesPerRequest,
+                                                           int maxQueueSizeBytes,
+                                                           String proxyHost,
+                                                           int proxyPort,
+                                                           String proxyAuth,
+                                                           String proxyUser,
+                                                           String proxyPassword,
+                                                           String proxyDomain,
+                                                           boolean ignoreExceptions,
+                                                           Layout layout,
+                                                           Filter filter) {
+        return newBuilder()
+                .withName(name)
+                .withUrl(url)
+                .withSourceName(sourceName)
+                .withSocketTimeout(socketTimeout)
+                .withConnectionTimeout(connectionTimeout)
+                .withRetryInterval(retryInterval)
+                .withMaxFlushInterval(maxFlushInterval)
+                .withMessagesPerRequest(messagesPerRequest)
+                .withMaxQueueSizeBytes(maxQueueSizeBytes)
+                .withProxyHost(proxyHost)
+                .withProxyPort(proxyPort)
+                .withProxyAuth(proxyAuth)
+                .withProxyUser(proxyUser)
+                .withProxyPassword(proxyPassword)
+                .withProxyDomain(proxyDomain)
+                .withIgnoreExceptions(ignoreExceptions)
+                .withLayout(layout)
+                .withFilter(filter)
+                .build();
     }
 
     /* All the parameters */
@@ -153,10 +762,134 @@ public class BufferedSumoLogicAppender extends AbstractAppender {
         this.maxQueueSizeBytes = maxQueueSizeBytes;
     }
 
+    public void setBufferType(String bufferType) {
+        this.bufferType = bufferType;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setEvictionPolicy(String evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public void setOverflowStrategy(String overflowStrategy) {
+        this.overflowStrategy = overflowStrategy;
+    }
+
+    public void setOverflowTimeout(long overflowTimeout) {
+        this.overflowTimeout = overflowTimeout;
+    }
+
+    public void setAdaptiveCapacity(boolean adaptiveCapacity) {
+        this.adaptiveCapacity = adaptiveCapacity;
+    }
+
+    public void setHeapPressureThreshold(int heapPressureThreshold) {
+        this.heapPressureThreshold = heapPressureThreshold;
+    }
+
+    public void setLowGarbage(boolean lowGarbage) {
+        this.lowGarbage = lowGarbage;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public void setAsyncRingSize(int asyncRingSize) {
+        this.asyncRingSize = asyncRingSize;
+    }
+
+    public void setWaitStrategy(String waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public void setStackTraceCacheSize(int stackTraceCacheSize) {
+        this.stackTraceCacheSize = stackTraceCacheSize;
+    }
+
+    public void setCollapseRepeatedStackTraces(boolean collapseRepeatedStackTraces) {
+        this.collapseRepeatedStackTraces = collapseRepeatedStackTraces;
+    }
+
+    public void setRateLimitEventsPerSecond(int rateLimitEventsPerSecond) {
+        this.rateLimitEventsPerSecond = rateLimitEventsPerSecond;
+    }
+
+    public void setRateLimitBytesPerSecond(int rateLimitBytesPerSecond) {
+        this.rateLimitBytesPerSecond = rateLimitBytesPerSecond;
+    }
+
+    public void setRateLimitLoggerDepth(int rateLimitLoggerDepth) {
+        this.rateLimitLoggerDepth = rateLimitLoggerDepth;
+    }
+
+    public void setRateLimitMaxLoggers(int rateLimitMaxLoggers) {
+        this.rateLimitMaxLoggers = rateLimitMaxLoggers;
+    }
+
+    public void setSenderConcurrency(int senderConcurrency) {
+        this.senderConcurrency = senderConcurrency;
+    }
+
+    public void setPreserveSourceOrdering(boolean preserveSourceOrdering) {
+        this.preserveSourceOrdering = preserveSourceOrdering;
+    }
+
+    public void setSharedDispatcher(boolean sharedDispatcher) {
+        this.sharedDispatcher = sharedDispatcher;
+    }
+
+    public void setAsyncSender(boolean asyncSender) {
+        this.asyncSender = asyncSender;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public void setRoutes(SumoRoute[] routes) {
+        this.routes = routes;
+    }
+
     public void setMessagesPerRequest(long messagesPerRequest) {
         this.messagesPerRequest = messagesPerRequest;
     }
 
+    public void setBytesPerRequest(long bytesPerRequest) {
+        this.bytesPerRequest = bytesPerRequest;
+    }
+
+    public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+        this.adaptiveBatchSize = adaptiveBatchSize;
+    }
+
+    public void setMinMessagesPerRequest(long minMessagesPerRequest) {
+        this.minMessagesPerRequest = minMessagesPerRequest;
+    }
+
+    public void setMaxMessagesPerRequest(long maxMessagesPerRequest) {
+        this.maxMessagesPerRequest = maxMessagesPerRequest;
+    }
+
+    public void setMaxRequestLatency(long maxRequestLatency) {
+        this.maxRequestLatency = maxRequestLatency;
+    }
+
 
     public void setMaxFlushInterval(long maxFlushInterval) {
         this.maxFlushInterval = maxFlushInterval;
@@ -166,8 +899,12 @@ public class BufferedSumoLogicAppender extends AbstractAppender {
         this.sourceName = sourceName;
     }
 
+    /**
+     * @deprecated Producers signal the flusher as soon as a batch is due, so there is nothing left to poll.
+     */
+    @Deprecated
     public void setFlushingAccuracy(long flushingAccuracy) {
-        this.flushingAccuracy = flushingAccuracy;
+        LOGGER.warn("flushingAccuracy is deprecated and no longer used; the buffer is flushed as soon as it is due");
     }
 
     public void setConnectionTimeout(int connectionTimeout) {
@@ -182,6 +919,26 @@ public class BufferedSumoLogicAppender extends AbstractAppender {
         this.retryInterval = retryInterval;
     }
 
+    public void setMaxRetryInterval(int maxRetryInterval) {
+        this.maxRetryInterval = maxRetryInterval;
+    }
+
+    public void setMaxRetryAttempts(int maxRetryAttempts) {
+        this.maxRetryAttempts = maxRetryAttempts;
+    }
+
+    public void setMaxRetryTime(long maxRetryTime) {
+        this.maxRetryTime = maxRetryTime;
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+
     public String getProxyHost() {
         return proxyHost;
     }
@@ -236,26 +993,61 @@ public class BufferedSumoLogicAppender extends AbstractAppender {
         StatusLogger.getLogger().debug("Activating options");
 
         /* Initialize queue */
-        if (queue == null) {
-            queue = new BufferWithFifoEviction<String>(maxQueueSizeBytes, new CostAssigner<String>() {
-              @Override
-              public long cost(String e) {
-                  // Note: This is only an estimate for total byte usage, since in UTF-8 encoding,
-                  // the size of one character may be > 1 byte.
-                 return e.length();
-              }
-            });
+        if (heapPressureMonitor != null) {
+            heapPressureMonitor.stop();
+            heapPressureMonitor = null;
+        }
+        if (queue == null || queue.isClosed()) {
+            queue = createBuffer();
         } else {
             queue.setCapacity(maxQueueSizeBytes);
         }
+        if (adaptiveCapacity) {
+            heapPressureMonitor = new HeapPressureMonitor(queue, heapPressureThreshold);
+            if (!heapPressureMonitor.start()) {
+                heapPressureMonitor = null;
+            }
+        }
+
+        stackTraces = new StackTraceCache(stackTraceCacheSize, collapseRepeatedStackTraces);
+        if (rateLimitEventsPerSecond > 0 || rateLimitBytesPerSecond > 0) {
+            rateLimiter = new LoggerRateLimiter(rateLimitEventsPerSecond, rateLimitBytesPerSecond,
+                rateLimitLoggerDepth, rateLimitMaxLoggers);
+        } else {
+            rateLimiter = null;
+        }
+
+        /* Initialize handoff */
+        if (handoff != null) {
+            handoff.stop();
+            handoff = null;
+        }
+        if (async) {
+            AsyncHandoff newHandoff = new AsyncHandoff(asyncRingSize, handoffMaxWait(), createWaitStrategy(),
+                new AsyncHandoff.EventHandler() {
+                    @Override
+                    public void onEvent(LogEvent event) {
+                        enqueue(event);
+                    }
+                });
+            newHandoff.start("SumoAsyncHandoff-" + getName());
+            handoff = newHandoff;
+        }
 
         /* Initialize sender */
-        if (sender == null)
-            sender = new SumoHttpSender();
+        if (sender == null || sender.isAsync() != useAsyncSender())
+            sender = useAsyncSender() ? new AsyncSumoHttpSender() : new SumoHttpSender();
 
         sender.setRetryInterval(retryInterval);
+        sender.setMaxRetryInterval(maxRetryInterval);
+        sender.setMaxRetryAttempts(maxRetryAttempts);
+        sender.setMaxRetryTime(maxRetryTime);
+        sender.setCircuitBreaker(circuitBreakerThreshold, circuitBreakerOpenTime);
         sender.setConnectionTimeout(connectionTimeout);
         sender.setSocketTimeout(socketTimeout);
+        sender.setMaxConnections(Math.max(2, senderConcurrency));
+        sender.setShareConnections(sharedDispatcher);
+        sender.setCompression(contentEncoding(), compressionLevel, compressionMinSize);
         sender.setUrl(url);
         sender.setProxySettings(new ProxySettings(
                 proxyHost,
@@ -271,14 +1063,27 @@ public class BufferedSumoLogicAppender extends AbstractAppender {
         if (flusher != null)
             flusher.stop();
 
-        flusher = new SumoBufferFlusher(flushingAccuracy,
-                    messagesPerRequest,
+        flusher = new SumoBufferFlusher(messagesPerRequest,
+                    bytesPerRequest,
                     maxFlushInterval,
+                    createBatchSizer(),
                     sourceName,
+                    routes,
+                    senderConcurrency,
+                    preserveSourceOrdering,
+                    sharedDispatcher,
                     sender,
                     queue);
         flusher.start();
 
+        if (rateLimiter != null) {
+            flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reportRateLimitDrops();
+                }
+            }, RATE_LIMIT_REPORT_INTERVAL);
+        }
     }
 
     @Override
@@ -288,39 +1093,278 @@ public class BufferedSumoLogicAppender extends AbstractAppender {
             return;
         }
 
-        StringBuilder builder = new StringBuilder(1024);
-        builder.append(getLayout().toSerializable(event));
+        // Layout and queueing happen on the handoff thread, unless it is stopping
+        AsyncHandoff currentHandoff = handoff;
+        if (currentHandoff == null) {
+            enqueue(event);
+        } else if (!currentHandoff.publish(event)) {
+            // Stopping, or the ring is full. Its slots can't be evicted from, so the buffer does that instead
+            if (!currentHandoff.isRunning() || !dropsNewOnOverflow()) {
+                enqueue(event);
+            } else {
+                // Not laid out, so its size is unknown
+                queue.getEvictions().record(1, 0);
+            }
+        }
+    }
+
+    private void enqueue(LogEvent event) {
+        // Events over their logger's budget are dropped before paying for their layout
+        LoggerRateLimiter limiter = rateLimiter;
+        if (limiter != null && !limiter.tryAcquireEvent(event.getLoggerName())) {
+            return;
+        }
+
+        byte[] bytes = serialize(event);
+        if (limiter != null && !limiter.tryAcquireBytes(event.getLoggerName(), bytes.length)) {
+            return;
+        }
+
+        offer(bytes, event.getLevel().intLevel(), routeOf(event));
+    }
+
+    // Lay out the event, with its stack trace, into the bytes that get queued
+    private byte[] serialize(LogEvent event) {
+        byte[] stackTrace = null;
         if (ignoreExceptions() && event.getThrown() != null) {
-            for (String line : Throwables.toStringList(event.getThrown())) {
-                builder.append(line);
-                builder.append("\n");
+            stackTrace = stackTraces.render(event.getThrown());
+        }
+
+        byte[] bytes;
+        if (lowGarbage) {
+            // The layout writes straight into this thread's buffer. Still allocated per event: the
+            // copy below, which is what gets queued, and the buffer's own entry for it
+            GrowableByteBufferDestination destination = destinations.get();
+            getLayout().encode(event, destination);
+            if (stackTrace != null) {
+                destination.write(stackTrace);
+            }
+            bytes = destination.takeBytes();
+        } else {
+            bytes = String.valueOf(getLayout().toSerializable(event)).getBytes(Consts.UTF_8);
+            if (stackTrace != null) {
+                byte[] message = new byte[bytes.length + stackTrace.length];
+                System.arraycopy(bytes, 0, message, 0, bytes.length);
+                System.arraycopy(stackTrace, 0, message, bytes.length, stackTrace.length);
+                bytes = message;
             }
         }
+        return bytes;
+    }
 
+    private void offer(byte[] bytes, int level, int route) {
         try {
-            queue.add(builder.toString());
+            // Encode once here; the flusher sends these bytes as they are, under the route kept next to them.
+            if (queue.add(bytes, level, route)) {
+                SumoBufferFlusher currentFlusher = flusher;
+                if (currentFlusher != null) {
+                    currentFlusher.signal();
+                }
+            }
         } catch (Exception e) {
             StatusLogger.getLogger().error("Unable to insert log entry into log queue. ", e);
         }
     }
 
+    /**
+     * Send what is still buffered before stopping, for at most <tt>timeout</tt>, or
+     * shutdownTimeout ms if no timeout is given.
+     */
     @Override
-    public void stop() {
-        super.stop();
-        try {
-            sender.close();
-            sender = null;
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        long deadline = System.currentTimeMillis() + (timeout > 0 ? timeUnit.toMillis(timeout) : shutdownTimeout);
 
-            flusher.stop();
+        // Events still in the handoff end up in the buffer
+        if (handoff != null) {
+            handoff.stop(deadline);
+            handoff = null;
+        }
+        if (heapPressureMonitor != null) {
+            heapPressureMonitor.stop();
+            heapPressureMonitor = null;
+        }
+        if (flusher != null) {
+            if (rateLimiter != null) {
+                reportRateLimitDrops();
+            }
+            // Retries which would outlast the deadline are given up on rather than waited for
+            if (sender != null) {
+                sender.giveUpBy(deadline);
+            }
+            stopped &= flusher.drain(deadline);
             flusher = null;
-        } catch (IOException e) {
-            StatusLogger.getLogger().error("Unable to close appender", e);
         }
+        // A spool keeps what was not delivered on disk, and is opened again on the next start
+        if (queue != null) {
+            queue.close();
+        }
+        // Only now that nothing is sending any more
+        if (sender != null) {
+            try {
+                sender.close();
+            } catch (IOException e) {
+                StatusLogger.getLogger().error("Unable to close appender", e);
+                stopped = false;
+            }
+            sender = null;
+        }
+
+        setStopped();
+        return stopped;
     }
 
 
     // Private bits.
 
+    private static final long RATE_LIMIT_REPORT_INTERVAL = 10000;
+    private static final String RATE_LIMIT_LOGGER = "com.sumologic.log4j.RateLimit";
+
+    // Queue a summary of what the rate limiter dropped, past the limiter itself
+    private void reportRateLimitDrops() {
+        LoggerRateLimiter limiter = rateLimiter;
+        String summary = limiter == null ? null : limiter.drainSummary();
+        if (summary == null) return;
+
+        LogEvent event = Log4jLogEvent.newBuilder()
+            .setLoggerName(RATE_LIMIT_LOGGER)
+            .setLevel(Level.WARN)
+            .setMessage(new SimpleMessage(summary))
+            .setTimeMillis(System.currentTimeMillis())
+            .build();
+        offer(serialize(event), event.getLevel().intLevel(), routeOf(event));
+    }
+
+    // Index of the first matching route plus one, or 0 if none matches
+    private int routeOf(LogEvent event) {
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i].matches(event)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private AdaptiveBatchSizer createBatchSizer() {
+        if (!adaptiveBatchSize) return null;
+
+        long min = Math.max(1, minMessagesPerRequest);
+        long max = Math.max(min, maxMessagesPerRequest);
+        return new AdaptiveBatchSizer(messagesPerRequest, min, max, maxRequestLatency);
+    }
+
+    private boolean useAsyncSender() {
+        if (asyncSender && !AsyncSumoHttpSender.isSupported()) {
+            StatusLogger.getLogger().warn("asyncSender needs httpasyncclient 4.1 on the classpath. Using the blocking sender");
+            asyncSender = false;
+        }
+        return asyncSender;
+    }
+
+    // The Content-Encoding to compress with, or null for none
+    private String contentEncoding() {
+        if (GZIP_COMPRESSION.equals(compression) || DEFLATE_COMPRESSION.equals(compression)) {
+            if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+                StatusLogger.getLogger().warn("Invalid compressionLevel " + compressionLevel + ". Using the default");
+                compressionLevel = Deflater.DEFAULT_COMPRESSION;
+            }
+            return compression;
+        }
+        if (compression != null && !NO_COMPRESSION.equals(compression)) {
+            StatusLogger.getLogger().warn("Unknown compression " + compression + ". Using " + NO_COMPRESSION);
+        }
+        return null;
+    }
+
+    // How long logging threads wait for a free slot in the async ring
+    private long handoffMaxWait() {
+        return BLOCK_ON_OVERFLOW.equals(overflowStrategy) ? overflowTimeout : 0;
+    }
+
+    private boolean dropsNewOnOverflow() {
+        return BLOCK_ON_OVERFLOW.equals(overflowStrategy) || DROP_NEW_ON_OVERFLOW.equals(overflowStrategy);
+    }
+
+    private AsyncHandoff.WaitStrategy createWaitStrategy() {
+        if (SLEEPING_WAIT.equals(waitStrategy)) {
+            return new AsyncHandoff.SleepingWaitStrategy();
+        }
+        if (YIELDING_WAIT.equals(waitStrategy)) {
+            return new AsyncHandoff.YieldingWaitStrategy();
+        }
+        if (BUSY_SPIN_WAIT.equals(waitStrategy)) {
+            return new AsyncHandoff.BusySpinWaitStrategy();
+        }
+        if (waitStrategy != null && !BLOCKING_WAIT.equals(waitStrategy)) {
+            StatusLogger.getLogger().warn("Unknown waitStrategy " + waitStrategy + ". Using " + BLOCKING_WAIT);
+        }
+        return new AsyncHandoff.BlockingWaitStrategy();
+    }
+
+    private static final int ENCODING_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_RETAINED_ENCODING_BUFFER_SIZE = 256 * 1024;
+
+    private static final CostAssigner<byte[]> BYTE_COST = new CostAssigner<byte[]>() {
+        @Override
+        public long cost(byte[] e) {
+            // Messages are already UTF-8 encoded, so this is exactly what goes over the wire.
+            return e.length;
+        }
+    };
+
+    private BufferWithEviction<byte[]> createBuffer() {
+        BufferWithEviction<byte[]> buffer = createEvictingBuffer(BYTE_COST);
+
+        if (BLOCK_ON_OVERFLOW.equals(overflowStrategy)) {
+            return new BufferWithBackpressure<byte[]>(buffer, BYTE_COST, overflowTimeout);
+        }
+        if (DROP_NEW_ON_OVERFLOW.equals(overflowStrategy)) {
+            return new BufferWithBackpressure<byte[]>(buffer, BYTE_COST, 0);
+        }
+        if (overflowStrategy != null && !EVICT_ON_OVERFLOW.equals(overflowStrategy)) {
+            StatusLogger.getLogger().warn("Unknown overflowStrategy " + overflowStrategy + ". Using " + EVICT_ON_OVERFLOW);
+        }
+        return buffer;
+    }
+
+    private BufferWithEviction<byte[]> createEvictingBuffer(CostAssigner<byte[]> costAssigner) {
+        if (LEVEL_EVICTION.equals(evictionPolicy)) {
+            if (bufferType != null && !DEFAULT_BUFFER.equals(bufferType)) {
+                StatusLogger.getLogger().warn("evictionPolicy " + LEVEL_EVICTION + " ignores bufferType " + bufferType);
+            }
+            return new BufferWithLevelEviction<byte[]>(maxQueueSizeBytes, costAssigner);
+        }
+        if (evictionPolicy != null && !FIFO_EVICTION.equals(evictionPolicy)) {
+            StatusLogger.getLogger().warn("Unknown evictionPolicy " + evictionPolicy + ". Using " + FIFO_EVICTION);
+        }
+
+        if (LOCK_FREE_BUFFER.equals(bufferType)) {
+            return new LockFreeBufferWithFifoEviction<byte[]>(maxQueueSizeBytes, costAssigner);
+        }
+        if (STRIPED_BUFFER.equals(bufferType)) {
+            return new StripedBufferWithFifoEviction<byte[]>(maxQueueSizeBytes, costAssigner);
+        }
+        if (OFF_HEAP_BUFFER.equals(bufferType)) {
+            return new OffHeapBufferWithFifoEviction(maxQueueSizeBytes);
+        }
+        if (SPOOL_BUFFER.equals(bufferType)) {
+            File directory = spoolDirectory != null ?
+                    new File(spoolDirectory) :
+                    new File(System.getProperty("java.io.tmpdir"), "sumo-spool-" + getName());
+            try {
+                return new SpoolBufferWithFifoEviction(maxQueueSizeBytes, directory);
+            } catch (IOException e) {
+                StatusLogger.getLogger().error("Unable to open spool " + directory + ". Using " + DEFAULT_BUFFER, e);
+                return new BufferWithFifoEviction<byte[]>(maxQueueSizeBytes, costAssigner);
+            }
+        }
+        if (bufferType != null && !DEFAULT_BUFFER.equals(bufferType)) {
+            StatusLogger.getLogger().warn("Unknown bufferType " + bufferType + ". Using " + DEFAULT_BUFFER);
+        }
+        return new BufferWithFifoEviction<byte[]>(maxQueueSizeBytes, costAssigner);
+    }
+
     private boolean checkEntryConditions() {
         return sender != null && sender.isInitialized();
     }
@@ -0,0 +1,93 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ByteBufferDestination} backed by a heap buffer that doubles whenever a layout fills
+ * it, so a whole event can be encoded before its bytes are copied out. Meant to be reused by a
+ * single thread, one event at a time.
+ */
+class GrowableByteBufferDestination implements ByteBufferDestination {
+
+    private final int initialCapacity;
+    private final int maxRetainedCapacity;
+    private ByteBuffer buffer;
+
+    GrowableByteBufferDestination(int initialCapacity, int maxRetainedCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer buf) {
+        // Nothing is consumed here: keep what was written so far and carry on in a bigger buffer
+        ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+        buf.flip();
+        bigger.put(buf);
+        buffer = bigger;
+        return bigger;
+    }
+
+    /**
+     * Append bytes after whatever the layout wrote, growing the buffer if needed.
+     */
+    void write(byte[] bytes) {
+        while (buffer.remaining() < bytes.length) {
+            drain(buffer);
+        }
+        buffer.put(bytes);
+    }
+
+    /**
+     * Copy out everything written since the last call, and start over. The copy is the one
+     * allocation left per event, as it outlives this thread's next event in the buffer.
+     * @return the encoded bytes
+     */
+    byte[] takeBytes() {
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+
+        // Don't hold on to the memory of an unusually large event
+        if (buffer.capacity() > maxRetainedCapacity) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+        } else {
+            buffer.clear();
+        }
+        return bytes;
+    }
+}
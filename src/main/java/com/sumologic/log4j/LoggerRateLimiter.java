@@ -0,0 +1,265 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets limiting how many events and bytes per second each logger may queue, so that a
+ * single runaway logger can't push everybody else's messages out of the buffer.
+ *
+ * Loggers are keyed by their name, or by its first <tt>loggerDepth</tt> dot separated parts.
+ * Each bucket holds up to one second worth of budget. At most <tt>maxLoggers</tt> buckets are
+ * kept; beyond that the least recently used ones are dropped. Rejected events are counted, and
+ * {@link #drainSummary()} describes them.
+ *
+ * Callers which only know the size of an event once it is laid out check the event budget first
+ * with {@link #tryAcquireEvent}, so that events over budget are dropped before paying for their
+ * layout, and then charge the bytes with {@link #tryAcquireBytes}.
+ */
+class LoggerRateLimiter {
+
+    // Loggers listed by name in a summary; the rest only count towards the totals
+    private static final int MAX_LOGGERS_IN_SUMMARY = 10;
+
+    private final long eventsPerSecond;
+    private final long bytesPerSecond;
+    private final int loggerDepth;
+    private final int maxLoggers;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final AtomicLong droppedEvents = new AtomicLong(0);
+    private final AtomicLong droppedBytes = new AtomicLong(0);
+
+    LoggerRateLimiter(long eventsPerSecond, long bytesPerSecond, int loggerDepth, int maxLoggers) {
+        this.eventsPerSecond = eventsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.loggerDepth = loggerDepth;
+        this.maxLoggers = Math.max(1, maxLoggers);
+    }
+
+    /**
+     * Take one event of <tt>bytes</tt> bytes out of the logger's budget.
+     * @return false if the logger is over its budget and the event should be dropped.
+     */
+    public boolean tryAcquire(String loggerName, long bytes) {
+        return acquireEvent(loggerName, bytes) && tryAcquireBytes(loggerName, bytes);
+    }
+
+    /**
+     * Take one event out of the logger's budget, before knowing its size. Fails if the logger is
+     * out of events, or out of bytes altogether.
+     * @return false if the logger is over its budget and the event should be dropped.
+     */
+    public boolean tryAcquireEvent(String loggerName) {
+        return acquireEvent(loggerName, 0);
+    }
+
+    /**
+     * Take the <tt>bytes</tt> of an event already let through by {@link #tryAcquireEvent} out of
+     * the logger's budget. If there aren't enough, the event is handed back.
+     * @return false if the logger is over its budget and the event should be dropped.
+     */
+    public boolean tryAcquireBytes(String loggerName, long bytes) {
+        if (bytesPerSecond <= 0) return true;
+
+        Bucket bucket = bucketFor(loggerName);
+        if (bucket.tryAcquireBytes(nanoTime(), bytes)) {
+            return true;
+        }
+        recordDrop(bucket, bytes);
+        return false;
+    }
+
+    /**
+     * Describe the events dropped since the last call, and reset the counts. Only the events
+     * dropped once their size was known count towards the bytes.
+     * @return the summary, or null if nothing was dropped.
+     */
+    public String drainSummary() {
+        long events = droppedEvents.getAndSet(0);
+        long bytes = droppedBytes.getAndSet(0);
+        if (events == 0) return null;
+
+        List<Map.Entry<String, long[]>> loggers = new ArrayList<Map.Entry<String, long[]>>();
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            long loggerEvents = entry.getValue().droppedEvents.getAndSet(0);
+            long loggerBytes = entry.getValue().droppedBytes.getAndSet(0);
+            if (loggerEvents > 0) {
+                loggers.add(new AbstractMap.SimpleEntry<String, long[]>(
+                        entry.getKey(), new long[] {loggerEvents, loggerBytes}));
+            }
+        }
+        Collections.sort(loggers, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                return Long.compare(b.getValue()[0], a.getValue()[0]);
+            }
+        });
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Rate limit dropped ").append(events).append(" events (").append(bytes).append(" bytes)");
+        for (int i = 0; i < loggers.size() && i < MAX_LOGGERS_IN_SUMMARY; i++) {
+            Map.Entry<String, long[]> logger = loggers.get(i);
+            summary.append(i == 0 ? ": " : ", ");
+            summary.append(logger.getKey()).append('=').append(logger.getValue()[0]);
+        }
+        if (loggers.size() > MAX_LOGGERS_IN_SUMMARY) {
+            summary.append(", ...");
+        }
+        return summary.toString();
+    }
+
+    int trackedLoggers() {
+        return buckets.size();
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+
+    // knownBytes is only what gets recorded if the event is dropped
+    private boolean acquireEvent(String loggerName, long knownBytes) {
+        Bucket bucket = bucketFor(loggerName);
+        if (bucket.tryAcquireEvent(nanoTime())) {
+            return true;
+        }
+        recordDrop(bucket, knownBytes);
+        return false;
+    }
+
+    private void recordDrop(Bucket bucket, long bytes) {
+        bucket.droppedEvents.incrementAndGet();
+        bucket.droppedBytes.addAndGet(bytes);
+        droppedEvents.incrementAndGet();
+        droppedBytes.addAndGet(bytes);
+    }
+
+    private Bucket bucketFor(String loggerName) {
+        long now = nanoTime();
+        String key = keyFor(loggerName);
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Bucket created = new Bucket(now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+                if (buckets.size() > maxLoggers) {
+                    evictLeastRecentlyUsed();
+                }
+            }
+        }
+        return bucket;
+    }
+
+    private String keyFor(String loggerName) {
+        if (loggerName == null) return "";
+        if (loggerDepth <= 0) return loggerName;
+
+        int end = -1;
+        for (int i = 0; i < loggerDepth; i++) {
+            end = loggerName.indexOf('.', end + 1);
+            if (end < 0) return loggerName;
+        }
+        return loggerName.substring(0, end);
+    }
+
+    // Only runs when a new logger shows up while the map is full, so a scan is fine
+    private void evictLeastRecentlyUsed() {
+        List<Map.Entry<String, Bucket>> entries = new ArrayList<Map.Entry<String, Bucket>>(buckets.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Bucket>>() {
+            @Override
+            public int compare(Map.Entry<String, Bucket> a, Map.Entry<String, Bucket> b) {
+                return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+            }
+        });
+
+        // Make some headroom, so the next new logger doesn't trigger another scan
+        int excess = entries.size() - maxLoggers + Math.max(1, maxLoggers / 10);
+        for (int i = 0; i < excess && i < entries.size(); i++) {
+            buckets.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+    }
+
+    private class Bucket {
+        private double eventTokens;
+        private double byteTokens;
+        private long lastRefill;
+        volatile long lastAccess;
+
+        final AtomicLong droppedEvents = new AtomicLong(0);
+        final AtomicLong droppedBytes = new AtomicLong(0);
+
+        Bucket(long now) {
+            this.eventTokens = eventsPerSecond;
+            this.byteTokens = bytesPerSecond;
+            this.lastRefill = now;
+            this.lastAccess = now;
+        }
+
+        synchronized boolean tryAcquireEvent(long now) {
+            refill(now);
+            if (eventsPerSecond > 0 && eventTokens < 1) {
+                return false;
+            }
+            if (bytesPerSecond > 0 && byteTokens <= 0) {
+                return false;
+            }
+            eventTokens -= 1;
+            return true;
+        }
+
+        synchronized boolean tryAcquireBytes(long now, long bytes) {
+            refill(now);
+            // A message bigger than the whole budget still goes through once the bucket is full
+            if (byteTokens < Math.min(bytes, bytesPerSecond)) {
+                eventTokens = Math.min(eventsPerSecond, eventTokens + 1);
+                return false;
+            }
+            byteTokens -= bytes;
+            return true;
+        }
+
+        private void refill(long now) {
+            lastAccess = now;
+            double elapsedSeconds = (double) (now - lastRefill) / TimeUnit.SECONDS.toNanos(1);
+            lastRefill = now;
+            eventTokens = Math.min(eventsPerSecond, eventTokens + elapsedSeconds * eventsPerSecond);
+            byteTokens = Math.min(bytesPerSecond, byteTokens + elapsedSeconds * bytesPerSecond);
+        }
+    }
+}
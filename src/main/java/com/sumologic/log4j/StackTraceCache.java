@@ -0,0 +1,188 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.http.Consts;
+import org.apache.logging.log4j.core.util.Throwables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders stack traces, keeping the bytes of the most recently seen ones so that a burst of
+ * identical exceptions is only rendered once.
+ *
+ * Throwables are matched on a fingerprint of their structure: the class, message and frames of
+ * every throwable in the cause and suppressed chains. Computing it is much cheaper than
+ * rendering, and no reference to the throwable is kept. With <tt>collapseRepeats</tt> set, a
+ * repeated stack trace is replaced by its first line and a reference to the full copy sent
+ * earlier.
+ */
+class StackTraceCache {
+
+    // Bounds how much of a deep or cyclic chain goes into a fingerprint
+    private static final int MAX_THROWABLES = 64;
+
+    private final int maxEntries;
+    private final boolean collapseRepeats;
+    private final Map<Fingerprint, Rendering> cache;
+
+    StackTraceCache(final int maxEntries, boolean collapseRepeats) {
+        this.maxEntries = maxEntries;
+        this.collapseRepeats = collapseRepeats;
+        this.cache = new LinkedHashMap<Fingerprint, Rendering>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Fingerprint, Rendering> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return the stack trace of <tt>thrown</tt> as UTF-8 bytes, one line per frame.
+     */
+    public byte[] render(Throwable thrown) {
+        if (maxEntries <= 0) {
+            return renderFully(thrown);
+        }
+
+        Fingerprint fingerprint = new Fingerprint(thrown);
+        Rendering rendering;
+        synchronized (cache) {
+            rendering = cache.get(fingerprint);
+        }
+        if (rendering != null) {
+            return collapseRepeats ? rendering.reference : rendering.full;
+        }
+
+        rendering = new Rendering(thrown, fingerprint.id());
+        synchronized (cache) {
+            cache.put(fingerprint, rendering);
+        }
+        return rendering.first;
+    }
+
+    private static byte[] renderFully(Throwable thrown) {
+        return render(Throwables.toStringList(thrown), null);
+    }
+
+    private static byte[] render(List<String> lines, String lastLine) {
+        StringBuilder builder = new StringBuilder(1024);
+        for (String line : lines) {
+            builder.append(line);
+            builder.append("\n");
+        }
+        if (lastLine != null) {
+            builder.append(lastLine);
+            builder.append("\n");
+        }
+        return builder.toString().getBytes(Consts.UTF_8);
+    }
+
+    private class Rendering {
+        final byte[] first;      // what the first occurrence is sent as
+        final byte[] full;       // what repeats are sent as
+        final byte[] reference;  // what repeats are sent as when collapsing them
+
+        Rendering(Throwable thrown, String id) {
+            List<String> lines = Throwables.toStringList(thrown);
+            this.full = render(lines, null);
+            if (collapseRepeats) {
+                this.first = render(lines, "\t[stack trace " + id + "]");
+                List<String> firstLine = lines.isEmpty() ? lines : lines.subList(0, 1);
+                this.reference = render(firstLine, "\t... same stack trace as " + id);
+            } else {
+                this.first = full;
+                this.reference = full;
+            }
+        }
+    }
+
+    static final class Fingerprint {
+        private final String[] classNames;
+        private final String[] messages;
+        private final StackTraceElement[][] frames;
+        private final int hash;
+
+        Fingerprint(Throwable thrown) {
+            List<Throwable> chain = new ArrayList<Throwable>();
+            collect(thrown, chain);
+
+            int size = chain.size();
+            classNames = new String[size];
+            messages = new String[size];
+            frames = new StackTraceElement[size][];
+            int h = 1;
+            for (int i = 0; i < size; i++) {
+                Throwable t = chain.get(i);
+                classNames[i] = t.getClass().getName();
+                messages[i] = t.getMessage();
+                frames[i] = t.getStackTrace();
+                h = 31 * h + classNames[i].hashCode();
+                h = 31 * h + (messages[i] == null ? 0 : messages[i].hashCode());
+                h = 31 * h + Arrays.hashCode(frames[i]);
+            }
+            hash = h;
+        }
+
+        String id() {
+            return String.format("%08x", hash);
+        }
+
+        // Depth first through causes and suppressed throwables, the order in which they are printed
+        private static void collect(Throwable t, List<Throwable> chain) {
+            if (t == null || chain.size() >= MAX_THROWABLES) return;
+            for (Throwable seen : chain) {
+                if (seen == t) return;
+            }
+            chain.add(t);
+            for (Throwable suppressed : t.getSuppressed()) {
+                collect(suppressed, chain);
+            }
+            collect(t.getCause(), chain);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Fingerprint)) return false;
+            Fingerprint other = (Fingerprint) o;
+            return hash == other.hash &&
+                    Arrays.equals(classNames, other.classNames) &&
+                    Arrays.equals(messages, other.messages) &&
+                    Arrays.deepEquals(frames, other.frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
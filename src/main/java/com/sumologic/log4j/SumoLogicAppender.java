@@ -51,6 +51,8 @@ import org.apache.logging.log4j.core.util.Throwables;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Appender that sends log messages to Sumo Logic.
@@ -63,9 +65,15 @@ public class SumoLogicAppender extends AbstractAppender {
   private String url;
   private int connectionTimeout;
   private int socketTimeout;
+  private int linger;             // How long to wait for more events to send along with the first (ms)
+  private int lingerBatchSize;    // How many events to send at most per request when lingering
 
   private HttpClient httpClient = null;
 
+  // The batch still taking events, if any; guarded by batchLock
+  private final Object batchLock = new Object();
+  private Batch openBatch = null;
+
   public void setUrl(String url) {
     this.url = url;
   }
@@ -78,6 +86,14 @@ public class SumoLogicAppender extends AbstractAppender {
     this.socketTimeout = socketTimeout;
   }
 
+  public void setLinger(int linger) {
+    this.linger = linger;
+  }
+
+  public void setLingerBatchSize(int lingerBatchSize) {
+    this.lingerBatchSize = lingerBatchSize;
+  }
+
   private SumoLogicAppender(String name, Layout layout, Filter filter, boolean ignoreExceptions) {
     super(name, filter, layout, ignoreExceptions);
   }
@@ -87,6 +103,8 @@ public class SumoLogicAppender extends AbstractAppender {
                                             @PluginAttribute("url") String url,
                                             @PluginAttribute(value = "socketTimeout", defaultInt = 60000) int socketTimeout,
                                             @PluginAttribute(value = "connectionTimeout", defaultInt = 1000) int connectionTimeout,
+                                            @PluginAttribute("linger") int linger,
+                                            @PluginAttribute(value = "lingerBatchSize", defaultInt = 100) int lingerBatchSize,
                                             @PluginAttribute("ignoreExceptions") boolean ignoreExceptions,
                                             @PluginElement("Layout") Layout layout,
                                             @PluginElement("Filters") Filter filter) {
@@ -106,6 +124,8 @@ public class SumoLogicAppender extends AbstractAppender {
     appender.setUrl(url);
     appender.setSocketTimeout(socketTimeout);
     appender.setConnectionTimeout(connectionTimeout);
+    appender.setLinger(linger);
+    appender.setLingerBatchSize(lingerBatchSize);
     return appender;
   }
 
@@ -134,7 +154,11 @@ public class SumoLogicAppender extends AbstractAppender {
       }
     }
 
-    sendToSumo(builder.toString());
+    if (linger > 0) {
+      sendInBatch(builder.toString());
+    } else {
+      sendToSumo(builder.toString());
+    }
   }
 
   @Override
@@ -155,6 +179,70 @@ public class SumoLogicAppender extends AbstractAppender {
     return true;
   }
 
+  // Events sent together in one request. Whoever opens a batch waits out the linger, closes
+  // and sends it; everyone else who joined waits until that is done.
+  private static class Batch {
+    final StringBuilder body = new StringBuilder(1024);
+    final CountDownLatch sent = new CountDownLatch(1);
+    int size = 0;
+  }
+
+  private void sendInBatch(String log) {
+    Batch batch;
+    boolean opened = false;
+    synchronized (batchLock) {
+      if (openBatch == null) {
+        openBatch = new Batch();
+        opened = true;
+      }
+      batch = openBatch;
+      batch.body.append(log);
+      batch.size++;
+      if (batch.size >= lingerBatchSize) {
+        openBatch = null;
+        batchLock.notifyAll();
+      }
+
+      if (opened) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+        try {
+          long remaining;
+          while (openBatch == batch && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(batchLock, remaining);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (openBatch == batch) {
+          openBatch = null;
+        }
+      }
+    }
+
+    if (opened) {
+      try {
+        sendToSumo(batch.body.toString());
+      } finally {
+        batch.sent.countDown();
+      }
+      return;
+    }
+
+    // Returning means sent, as without linger
+    boolean interrupted = false;
+    while (true) {
+      try {
+        batch.sent.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void sendToSumo(String log) {
     HttpPost post = null;
     try {
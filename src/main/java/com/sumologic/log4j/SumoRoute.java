@@ -0,0 +1,122 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * A routing rule for {@link BufferedSumoLogicAppender}. Events matching the rule are sent with
+ * its source name, category and host instead of the appender's. A rule matches when every
+ * condition it sets holds: the logger name starts with <tt>loggerPrefix</tt>, the event is at
+ * least as severe as <tt>level</tt>, and the context map has <tt>mdcKey</tt> (equal to
+ * <tt>mdcValue</tt>, if set). The first matching rule wins.
+ */
+@Plugin(name = "SumoRoute", category = "Core", printObject = true)
+public class SumoRoute {
+
+    private final String loggerPrefix;
+    private final Level level;
+    private final String mdcKey;
+    private final String mdcValue;
+
+    private final String sourceName;
+    private final String sourceCategory;
+    private final String sourceHost;
+
+    public SumoRoute(String loggerPrefix, Level level, String mdcKey, String mdcValue,
+                     String sourceName, String sourceCategory, String sourceHost) {
+        this.loggerPrefix = loggerPrefix;
+        this.level = level;
+        this.mdcKey = mdcKey;
+        this.mdcValue = mdcValue;
+        this.sourceName = sourceName;
+        this.sourceCategory = sourceCategory;
+        this.sourceHost = sourceHost;
+    }
+
+    @PluginFactory
+    public static SumoRoute createRoute(@PluginAttribute("loggerPrefix") String loggerPrefix,
+                                        @PluginAttribute("level") String level,
+                                        @PluginAttribute("mdcKey") String mdcKey,
+                                        @PluginAttribute("mdcValue") String mdcValue,
+                                        @PluginAttribute("sourceName") String sourceName,
+                                        @PluginAttribute("sourceCategory") String sourceCategory,
+                                        @PluginAttribute("sourceHost") String sourceHost) {
+        Level minimumLevel = null;
+        if (level != null) {
+            minimumLevel = Level.toLevel(level, null);
+            if (minimumLevel == null) {
+                StatusLogger.getLogger().error("Unknown level " + level + " in SumoRoute");
+                return null;
+            }
+        }
+        if (mdcValue != null && mdcKey == null) {
+            StatusLogger.getLogger().error("SumoRoute has an mdcValue but no mdcKey");
+            return null;
+        }
+        return new SumoRoute(loggerPrefix, minimumLevel, mdcKey, mdcValue, sourceName, sourceCategory, sourceHost);
+    }
+
+    public boolean matches(LogEvent event) {
+        if (loggerPrefix != null) {
+            String loggerName = event.getLoggerName();
+            if (loggerName == null || !loggerName.startsWith(loggerPrefix)) return false;
+        }
+        if (level != null && !event.getLevel().isMoreSpecificThan(level)) {
+            return false;
+        }
+        if (mdcKey != null) {
+            Object value = event.getContextData().getValue(mdcKey);
+            if (value == null || (mdcValue != null && !mdcValue.equals(value.toString()))) return false;
+        }
+        return true;
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public String getSourceCategory() {
+        return sourceCategory;
+    }
+
+    public String getSourceHost() {
+        return sourceHost;
+    }
+
+    @Override
+    public String toString() {
+        return "SumoRoute(loggerPrefix=" + loggerPrefix + ", level=" + level + ", mdcKey=" + mdcKey +
+                ", mdcValue=" + mdcValue + ", sourceName=" + sourceName + ", sourceCategory=" + sourceCategory +
+                ", sourceHost=" + sourceHost + ")";
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+/**
+ * Picks how many messages to send per request from how long recent requests took. The batch
+ * grows by an eighth while full batches are sent about as fast as usual, shrinks by an eighth
+ * when requests slow down, and is halved when a request fails or takes longer than the latency
+ * ceiling. It always stays between the configured minimum and maximum.
+ */
+public class AdaptiveBatchSizer {
+
+    // Weight of the latest request in the usual latency
+    private static final double SMOOTHING = 0.1;
+    // Requests up to this much slower than usual still count as flat
+    private static final double FLAT = 1.2;
+    // Requests this much slower than usual make the batch shrink
+    private static final double SLOW = 1.5;
+
+    private final long minBatchSize;
+    private final long maxBatchSize;
+    private final long latencyCeiling;
+
+    private volatile long batchSize;
+    private double usualLatency = -1;
+
+    public AdaptiveBatchSizer(long initialBatchSize, long minBatchSize, long maxBatchSize, long latencyCeiling) {
+        if (minBatchSize < 1 || maxBatchSize < minBatchSize) {
+            throw new IllegalArgumentException("Batch size bounds must satisfy 1 <= min <= max");
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.latencyCeiling = latencyCeiling;
+        this.batchSize = clamp(initialBatchSize);
+    }
+
+    public long getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Take a finished request into account.
+     * @param messages how many messages the request carried
+     * @param latency how long it took, retries included (ms)
+     * @param sent whether it was accepted
+     */
+    public synchronized void record(int messages, long latency, boolean sent) {
+        long current = batchSize;
+        if (!sent || (latencyCeiling > 0 && latency > latencyCeiling)) {
+            batchSize = clamp(current / 2);
+            return;
+        }
+
+        if (usualLatency < 0) {
+            usualLatency = latency;
+        }
+        // Allow a few ms of jitter, which matters on fast links
+        if (latency > usualLatency * SLOW + 5) {
+            batchSize = clamp(current - step(current));
+        } else if (latency <= usualLatency * FLAT + 5 && messages >= current) {
+            // Only a full batch says anything about whether a bigger one would be slower
+            batchSize = clamp(current + step(current));
+        }
+        usualLatency += SMOOTHING * (latency - usualLatency);
+    }
+
+
+    private static long step(long size) {
+        return Math.max(1, size / 8);
+    }
+
+    private long clamp(long size) {
+        return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+}
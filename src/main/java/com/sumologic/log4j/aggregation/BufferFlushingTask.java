@@ -26,11 +26,15 @@
 package com.sumologic.log4j.aggregation;
 
 import com.sumologic.log4j.queue.BufferWithEviction;
+import com.sumologic.log4j.queue.EvictionCounter;
 import org.apache.logging.log4j.status.StatusLogger;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
 /**
  * Task to perform a single flushing check
@@ -39,9 +43,43 @@ import java.util.List;
  */
 public abstract class BufferFlushingTask<In, Out> implements Runnable {
 
+    // Evictions are summed up in a single warning at most this often
+    private static final long EVICTION_REPORT_INTERVAL = 10000;
+
     private long timeOfLastFlush = System.currentTimeMillis();
     private BufferWithEviction<In> messageQueue;
 
+    private long timeOfLastEvictionReport = 0;
+    private long reportedEvictions = 0;
+    private long reportedEvictedCost = 0;
+
+    // A drained batch, and where the buffer can be committed up to once it and those before it were sent
+    private static class Batch<In> {
+        final List<In> messages;
+        final List<Integer> tags;  // Each message's tag from the buffer, in the same order
+        final Object end;          // Null if nothing can be committed at this batch
+        final long generation;
+        boolean sent = false;
+        boolean held = false;      // Not sent, and to be sent again on the next flush
+
+        Batch(List<In> messages, List<Integer> tags, Object end, long generation) {
+            this.messages = messages;
+            this.tags = tags;
+            this.end = end;
+            this.generation = generation;
+        }
+    }
+
+    // Batches drained but not yet sent or given up on; guarded by commitLock
+    private final Object commitLock = new Object();
+    private int inFlight = 0;
+    private Semaphore inFlightPermits = new Semaphore(1);
+    // Batches not yet committed, oldest first, and how often the buffer was rewound past them
+    private final Deque<Batch<In>> uncommitted = new ArrayDeque<Batch<In>>();
+    private long generation = 0;
+    private int heldBatches = 0;
+    private volatile Runnable holdListener;
+
     private boolean needsFlushing() {
         long currentTime = System.currentTimeMillis();
         long dateOfNextFlush = timeOfLastFlush + getMaxFlushInterval();
@@ -50,35 +88,246 @@ public abstract class BufferFlushingTask<In, Out> implements Runnable {
                (currentTime >= dateOfNextFlush);
     }
 
-    private void flushAndSend() {
-        List<In> messages = new ArrayList<In>(messageQueue.size());
-        messageQueue.drainTo(messages);
+    private void flushAndSend(int maxRequests) throws InterruptedException {
+        // Messages wait in the queue, where eviction applies, until a batch can be in flight
+        inFlightPermits.acquire();
+
+        int messages = 0;
+        List<Batch<In>> batches = new ArrayList<Batch<In>>();
+        synchronized (commitLock) {
+            // Batches held back go first, in the order they were drained
+            if (heldBatches > 0) {
+                for (Batch<In> batch : uncommitted) {
+                    if (batch.held) {
+                        batch.held = false;
+                        batches.add(batch);
+                        messages += batch.messages.size();
+                    }
+                }
+                heldBatches = 0;
+            }
+
+            int limit = (int) Math.max(1, Math.min(Integer.MAX_VALUE, getMaxMessagesPerRequest()));
+            List<In> drained = new ArrayList<In>();
+            List<Integer> tags = new ArrayList<Integer>();
+            // Drained one request at a time, so each can be committed on its own
+            while (batches.size() < maxRequests && messageQueue.drainTo(drained, limit, tags) > 0) {
+                Object end = messageQueue.getDrainedPosition();
+                // Buffers which can't stop early hand out everything at once
+                for (int start = 0; start < drained.size(); start += limit) {
+                    int stop = Math.min(drained.size(), start + limit);
+                    Batch<In> batch = new Batch<In>(drained.subList(start, stop), tags.subList(start, stop),
+                            stop == drained.size() ? end : null, generation);
+                    batches.add(batch);
+                    uncommitted.addLast(batch);
+                }
+                messages += drained.size();
+                drained = new ArrayList<In>();
+                tags = new ArrayList<Integer>();
+            }
+            inFlight += Math.max(1, batches.size());
+        }
+        timeOfLastFlush = System.currentTimeMillis();
+
+        if (batches.isEmpty()) {
+            finish(null, false);
+            return;
+        }
+
+        StatusLogger.getLogger().debug(String.format("%s - Flushing and sending out %d messages in %d requests (%d messages left)",
+                new java.util.Date(),
+                messages,
+                batches.size(),
+                messageQueue.size()));
+        for (int i = 0; i < batches.size(); i++) {
+            if (i > 0) {
+                // If interrupted, the rest stay counted as in flight, so they are never committed
+                inFlightPermits.acquire();
+            }
+            dispatch(batches.get(i));
+        }
+    }
+
+    private void dispatch(final Batch<In> batch) {
+        final long start = System.currentTimeMillis();
+        try {
+            send(batch.messages, batch.tags, new SendCallback() {
+                @Override
+                public void completed(boolean sent) {
+                    onSent(batch.messages.size(), System.currentTimeMillis() - start, sent);
+                    finish(batch, sent);
+                }
+            });
+        } catch (RuntimeException e) {
+            finish(batch, false);
+            throw e;
+        }
+    }
+
+    private void finish(Batch<In> batch, boolean sent) {
+        boolean held = false;
+        synchronized (commitLock) {
+            inFlight--;
+            // Batches drained before the last rewind are handed out again, and settled then
+            if (batch != null && batch.generation == generation) {
+                if (sent) {
+                    batch.sent = true;
+                    commitSentPrefix();
+                } else if (shouldHold()) {
+                    batch.held = true;
+                    heldBatches++;
+                    held = true;
+                } else if (messageQueue.rewind()) {
+                    // Committing never moves past this batch, so it and everything after is drained again
+                    uncommitted.clear();
+                    heldBatches = 0;
+                    generation++;
+                } else {
+                    // Given up on
+                    uncommitted.remove(batch);
+                    commitSentPrefix();
+                }
+            }
+            commitLock.notifyAll();
+        }
+        inFlightPermits.release();
+
+        Runnable listener = holdListener;
+        if (held && listener != null) {
+            listener.run();
+        }
+    }
 
-        if (messages.size() > 0) {
-            StatusLogger.getLogger().debug(String.format("%s - Flushing and sending out %d messages (%d messages left)",
-                    new java.util.Date(),
-                    messages.size(),
-                    messageQueue.size()));
-            Out body = aggregate(messages);
-            sendOut(body, getName());
+    // Commit up to the oldest batch not sent yet; guarded by commitLock
+    private void commitSentPrefix() {
+        Object end = null;
+        while (!uncommitted.isEmpty() && uncommitted.peekFirst().sent) {
+            Batch<In> batch = uncommitted.pollFirst();
+            if (batch.end != null) {
+                end = batch.end;
+            }
+        }
+        if (end != null) {
+            messageQueue.commit(end);
         }
     }
 
 
+    private void reportEvictions() {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime < timeOfLastEvictionReport + EVICTION_REPORT_INTERVAL) return;
+
+        EvictionCounter evictions = messageQueue.getEvictions();
+        long count = evictions.getCount();
+        long cost = evictions.getCost();
+        if (count == reportedEvictions) return;
+
+        StatusLogger.getLogger().warn(String.format("Evicted %d messages (%d bytes) from buffer since the last report",
+                count - reportedEvictions,
+                cost - reportedEvictedCost));
+        reportedEvictions = count;
+        reportedEvictedCost = cost;
+        timeOfLastEvictionReport = currentTime;
+    }
+
+
     /* Subclasses should define from here */
 
     abstract protected long getMaxFlushInterval();
     abstract protected long getMessagesPerRequest();
     abstract protected String getName();
 
+    // Most messages to send in one request; a larger flush is split up
+    protected long getMaxMessagesPerRequest() {
+        return Long.MAX_VALUE;
+    }
+
+    // Called once per request when it was sent or given up on, with how long that took (ms)
+    protected void onSent(int messages, long latency, boolean sent) {
+    }
+
+    // Whether a batch which was not sent should be held and sent again on the next flush, rather
+    // than given up on; e.g. while the sender holds back all requests
+    protected boolean shouldHold() {
+        return false;
+    }
+
     protected BufferFlushingTask(BufferWithEviction<In> messageQueue) {
         this.messageQueue = messageQueue;
     }
 
-    // Given the list of messages, aggregate them into a single Out object
-    abstract protected Out aggregate(List<In> messages);
-    // Send aggregated message out. Block until we've successfully sent it.
-    abstract protected void sendOut(Out body, String name);
+    // Given the list of messages, aggregate them into a single Out object. Subclasses override
+    // either this and sendOut, or send.
+    protected Out aggregate(List<In> messages) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not aggregate messages");
+    }
+
+    // Send aggregated message out. Block until we've successfully sent it, or return false if
+    // we gave up on it.
+    protected boolean sendOut(Out body, String name) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not aggregate messages");
+    }
+
+    // Send a batch of drained messages, by default aggregated into a single request. Return false
+    // if any of it was given up on.
+    protected boolean send(List<In> messages) {
+        return sendOut(aggregate(messages), getName());
+    }
+
+    public interface SendCallback {
+        void completed(boolean sent);
+    }
+
+    // Send a batch without necessarily waiting for it, calling back exactly once when it was sent
+    // or given up on. By default sends it on the calling thread.
+    protected void send(List<In> messages, SendCallback callback) {
+        callback.completed(send(messages));
+    }
+
+    // Same, along with the tag the buffer kept for each message. By default the tags are ignored.
+    protected void send(List<In> messages, List<Integer> tags, SendCallback callback) {
+        send(messages, callback);
+    }
+
+    /**
+     * Wait up to <tt>timeout</tt> ms until every batch drained so far was sent, given up on, or
+     * held.
+     * @return true if none is left in flight or held.
+     */
+    public boolean awaitInFlight(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (commitLock) {
+            long remaining;
+            while (inFlight > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                commitLock.wait(remaining);
+            }
+            return inFlight == 0 && heldBatches == 0;
+        }
+    }
+
+    /**
+     * Whether some batches are held, waiting for the next flush.
+     */
+    public boolean hasHeld() {
+        synchronized (commitLock) {
+            return heldBatches > 0;
+        }
+    }
+
+    /**
+     * Called, on whichever thread finished the batch, whenever a batch gets held.
+     */
+    public void setHoldListener(Runnable holdListener) {
+        this.holdListener = holdListener;
+    }
+
+    /**
+     * Let up to <tt>maxInFlight</tt> batches be sent at the same time. Only useful when
+     * {@link #send(List, SendCallback)} doesn't wait for the batch to be sent.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        inFlightPermits = new Semaphore(Math.max(1, maxInFlight));
+    }
 
 
 
@@ -87,12 +336,33 @@ public abstract class BufferFlushingTask<In, Out> implements Runnable {
     @Override
     public void run() {
         if (needsFlushing()) {
-            try {
-                flushAndSend();
-            }
-            catch (Exception e) {
-                StatusLogger.getLogger().warn("Exception while attempting to flush and send", e);
-            }
+            flush();
+        } else {
+            reportEvictions();
+        }
+    }
+
+    /**
+     * Drain and send whatever is in the queue, without checking whether a flush is due.
+     */
+    public void flush() {
+        flush(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #flush()}, sending at most about <tt>maxRequests</tt> requests and leaving
+     * the rest in the queue.
+     */
+    public void flush(int maxRequests) {
+        reportEvictions();
+        try {
+            flushAndSend(maxRequests);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            StatusLogger.getLogger().warn("Exception while attempting to flush and send", e);
         }
     }
 
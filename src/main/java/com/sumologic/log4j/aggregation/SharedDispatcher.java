@@ -0,0 +1,88 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool shared by every flusher in the JVM that asks for it, instead of a thread or two
+ * per appender. It runs their timers and their flushes, and exists while at least one flusher
+ * holds on to it.
+ *
+ * Tasks due at the same time run in the order they were submitted. Each flusher has at most one
+ * flush queued, which sends a request or so and then queues the next one behind everybody
+ * else's, so buffers take turns round-robin and a busy appender can't starve the others. A
+ * blocking sender holds one of the threads while it waits to retry a request; with as many
+ * appenders retrying as there are threads, the others wait their turn.
+ */
+public final class SharedDispatcher {
+
+    private static final int NUM_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ScheduledThreadPoolExecutor executor = null;
+    private static int references = 0;
+
+    private SharedDispatcher() {
+    }
+
+    /**
+     * Get the shared scheduler, creating it if needed. Every call must be matched by a call to
+     * {@link #release()}; never shut the scheduler down directly.
+     */
+    public static synchronized ScheduledExecutorService acquire() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger(0);
+            executor = new ScheduledThreadPoolExecutor(NUM_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("SumoSharedFlusherThread-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        references++;
+        return executor;
+    }
+
+    public static synchronized void release() {
+        if (references == 0) return;
+        if (--references == 0) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    static synchronized int getReferences() {
+        return references;
+    }
+}
@@ -25,73 +25,295 @@
  */
 package com.sumologic.log4j.aggregation;
 
+import com.sumologic.log4j.SumoRoute;
 import com.sumologic.log4j.http.SumoBufferFlushingTask;
 import com.sumologic.log4j.http.SumoHttpSender;
 import com.sumologic.log4j.queue.BufferWithEviction;
+import org.apache.logging.log4j.status.StatusLogger;
 
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Flushes the buffer when producers signal that a request's worth of messages is waiting, or
+ * once the oldest unsent message has waited maxFlushInterval ms, whichever comes first. Nothing
+ * runs while the buffer is empty.
+ *
+ * Flushes and timers run on a thread of the flusher's own, or on the JVM-wide
+ * {@link SharedDispatcher}. There, a flush only sends as many requests as may be in flight at
+ * once before letting the other buffers have their turn. Either way, at most one flush per
+ * buffer is queued or running at a time. While the sender holds
+ * back requests, messages stay in the buffer, batches which were already on their way are held, and both are
+ * only looked at again every maxFlushInterval.
+ *
  * @author: Jose Muniz (jose@sumologic.com)
  */
 public class SumoBufferFlusher {
+    // How often a drain looks whether the sender lets held back requests through again (ms)
+    private static final long HELD_RECHECK_INTERVAL = 100;
+
     private SumoBufferFlushingTask flushingTask;
-    private ScheduledFuture future;
-    private ScheduledExecutorService executor;
-    private long flushingAccuracy;
+    private volatile ScheduledExecutorService executor;
+    private boolean shared;
+    private int requestsPerTurn;      // Most requests a flush sends before other buffers get their turn
+    private BufferWithEviction<byte[]> buffer;
+    private long messagesPerRequest;
+    private long bytesPerRequest;
+    private long maxFlushInterval;
+    private AdaptiveBatchSizer batchSizer;
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private final AtomicBoolean deadlineArmed = new AtomicBoolean(false);
+
+    // What this flusher has scheduled, so it can be cancelled without stopping a shared executor
+    private final Object flushLock = new Object();
+    private final List<Future<?>> periodicTasks = new CopyOnWriteArrayList<Future<?>>();
+    private volatile Future<?> pendingFlush;
+    private volatile Future<?> pendingDeadline;
+    private volatile boolean stopped = false;
+
+    private final Runnable flushNow = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                // Left to the buffer, where eviction applies, until the collector is back
+                if (!flushingTask.isSuspended()) {
+                    flush(requestsPerTurn);
+                }
+            } finally {
+                flushRequested.set(false);
+            }
+            // Signals which came in meanwhile found a flush already requested
+            if (buffer.size() > 0) {
+                check();
+            } else if (flushingTask.hasHeld()) {
+                armDeadline();
+            }
+        }
+    };
+
+    // Batches held back while the sender is suspended are looked at again after maxFlushInterval
+    private final Runnable onHeld = new Runnable() {
+        @Override
+        public void run() {
+            armDeadline();
+        }
+    };
+
+    private final Runnable flushAtDeadline = new Runnable() {
+        @Override
+        public void run() {
+            deadlineArmed.set(false);
+            requestFlush();
+        }
+    };
 
 
     public SumoBufferFlusher(
-            long flushingAccuracy,
             long messagesPerRequest,
+            long bytesPerRequest,
             long maxFlushInterval,
+            AdaptiveBatchSizer batchSizer,
             String sourceName,
+            SumoRoute[] routes,
+            int senderConcurrency,
+            boolean preserveSourceOrdering,
+            boolean sharedDispatcher,
             SumoHttpSender sender,
-            BufferWithEviction<String> buffer) {
+            BufferWithEviction<byte[]> buffer) {
 
-        this.flushingAccuracy = flushingAccuracy;
+        this.buffer = buffer;
+        this.messagesPerRequest = messagesPerRequest;
+        this.bytesPerRequest = bytesPerRequest;
+        this.maxFlushInterval = maxFlushInterval;
+        this.batchSizer = batchSizer;
+        this.shared = sharedDispatcher;
+        this.requestsPerTurn = sharedDispatcher ? Math.max(1, senderConcurrency) : Integer.MAX_VALUE;
 
         flushingTask = new SumoBufferFlushingTask(buffer);
 
         flushingTask.setMessagesPerRequest(messagesPerRequest);
         flushingTask.setMaxFlushInterval(maxFlushInterval);
+        flushingTask.setBatchSizer(batchSizer);
         flushingTask.setName(sourceName);
+        flushingTask.setRoutes(routes);
         flushingTask.setSender(sender);
+        flushingTask.setConcurrency(senderConcurrency, preserveSourceOrdering);
+        flushingTask.setHoldListener(onHeld);
     }
 
     public void start() {
         /* Start flushing! */
 
-        executor =
-            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread thread = new Thread(r);
-                    thread.setName("SumoBufferFlusherThread");
-                    thread.setDaemon(true);
-                    return thread;
-                }
-            });
+        if (shared) {
+            executor = SharedDispatcher.acquire();
+        } else {
+            ScheduledThreadPoolExecutor ownExecutor =
+                new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setName("SumoBufferFlusherThread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            ownExecutor.setRemoveOnCancelPolicy(true);
+            executor = ownExecutor;
+        }
 
+        // E.g. messages replayed from a spool, or left over from before a restart
+        if (buffer.size() > 0) {
+            check();
+        }
+    }
 
-        future =
-            executor.
-                scheduleAtFixedRate(flushingTask, 0, flushingAccuracy, TimeUnit.MILLISECONDS);
+    /**
+     * Tell the flusher that a message was added to the buffer. Cheap enough to call on every
+     * message: it only reads the buffer's own counts, and only writes anything when that makes
+     * a flush due, or starts the clock on the oldest message.
+     */
+    public void signal() {
+        // A flush on its way picks the message up
+        if (flushRequested.get()) return;
+        check();
+    }
 
+    /**
+     * Run a task every <tt>period</tt> ms on the flusher's executor, until the flusher is stopped.
+     */
+    public void schedule(Runnable task, long period) {
+        periodicTasks.add(executor.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS));
     }
 
 
     public void stop() {
-        // Keep the current task running until it's done sending
-        if (future != null) {
-            future.cancel(false);
-            future = null;
+        stopped = true;
+        for (Future<?> task : periodicTasks) {
+            task.cancel(false);
         }
+        cancel(pendingDeadline, false);
+        // Interrupts a flush still retrying, which would otherwise hold on to a shared thread
+        cancel(pendingFlush, true);
 
         if (executor != null) {
-            executor.shutdownNow();
+            if (shared) {
+                SharedDispatcher.release();
+            } else {
+                executor.shutdownNow();
+            }
+            executor = null;
+        }
+        flushingTask.shutdown();
+    }
+
+    /**
+     * Send whatever is still in the buffer, then stop. Gives up on sending, and stops anyway,
+     * once <tt>deadline</tt> (in ms since the epoch) has passed.
+     * @return true if everything was sent before the deadline.
+     */
+    public boolean drain(long deadline) {
+        ExecutorService current = executor;
+        if (current == null) return buffer.size() == 0;
+
+        boolean drained = false;
+        try {
+            cancel(pendingDeadline, false);
+            drained = drainOnce(current, deadline);
+            // Batches held back by the sender are tried again whenever it lets requests through
+            while (!drained && flushingTask.hasHeld() && remaining(deadline) > 0) {
+                while (flushingTask.isSuspended() && remaining(deadline) > 0) {
+                    Thread.sleep(Math.min(HELD_RECHECK_INTERVAL, remaining(deadline)));
+                }
+                drained = drainOnce(current, deadline);
+            }
+        } catch (RejectedExecutionException e) {
+            // Shut down under us; given up on below
+        } catch (TimeoutException e) {
+            // Given up on below
+        } catch (ExecutionException e) {
+            StatusLogger.getLogger().warn("Exception while draining buffer", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!drained) {
+            StatusLogger.getLogger().warn(String.format("Stopped before everything was sent, %d messages still buffered%s",
+                    buffer.size(), flushingTask.hasHeld() ? ", more held back while Sumo Logic was unavailable" : ""));
+        }
+        stop();
+        return drained;
+    }
+
+
+    private boolean drainOnce(ExecutorService current, long deadline)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Future<?> finalFlush = current.submit(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+        pendingFlush = finalFlush;
+        finalFlush.get(remaining(deadline), TimeUnit.MILLISECONDS);
+        return flushingTask.awaitInFlight(remaining(deadline));
+    }
+
+    private void check() {
+        long batchSize = batchSizer != null ? batchSizer.getBatchSize() : messagesPerRequest;
+        boolean full = buffer.size() >= batchSize || (bytesPerRequest > 0 && buffer.cost() >= bytesPerRequest);
+        // While the sender is suspended, look again at the deadline rather than on every message
+        if (full && !flushingTask.isSuspended()) {
+            requestFlush();
+        } else {
+            armDeadline();
+        }
+    }
+
+    private void armDeadline() {
+        // Read first, so that producers only write once per deadline
+        if (!deadlineArmed.get() && deadlineArmed.compareAndSet(false, true)) {
+            ScheduledExecutorService current = executor;
+            if (stopped || current == null) return;
+            try {
+                pendingDeadline = current.schedule(flushAtDeadline, maxFlushInterval, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopped; whatever is left stays in the buffer
+            }
         }
     }
 
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            ExecutorService current = executor;
+            if (stopped || current == null) return;
+            try {
+                pendingFlush = current.submit(flushNow);
+            } catch (RejectedExecutionException e) {
+                // Stopped; whatever is left stays in the buffer
+            }
+        }
+    }
+
+    private static void cancel(Future<?> task, boolean interrupt) {
+        if (task != null) {
+            task.cancel(interrupt);
+        }
+    }
 
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    private void flush() {
+        flush(Integer.MAX_VALUE);
+    }
+
+    private void flush(int maxRequests) {
+        // Only a final drain ever runs next to a regular flush
+        synchronized (flushLock) {
+            flushingTask.flush(maxRequests);
+        }
+    }
 }
@@ -0,0 +1,272 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import com.sumologic.log4j.aggregation.BufferFlushingTask;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A sender which doesn't wait for its requests. All of them are driven by a single I/O reactor
+ * thread, and retries are scheduled on a timer instead of sleeping, so any number of requests can
+ * be in flight without a thread each. Retries and the circuit breaker work as for
+ * {@link SumoHttpSender}.
+ *
+ * Needs httpasyncclient 4.1 on the classpath. Connections are never shared with other senders.
+ */
+public class AsyncSumoHttpSender extends SumoHttpSender {
+
+    private volatile CloseableHttpAsyncClient asyncClient = null;
+    private volatile ScheduledExecutorService retryTimer = null;
+
+    /**
+     * Whether httpasyncclient is on the classpath.
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName("org.apache.http.impl.nio.client.HttpAsyncClients", false,
+                    AsyncSumoHttpSender.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return asyncClient != null;
+    }
+
+    @Override
+    public void init() {
+        initRetries();
+
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(1)
+                .setConnectTimeout(connectionTimeout)
+                .setSoTimeout(socketTimeout)
+                .build();
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(createRequestConfig())
+                .setDefaultIOReactorConfig(reactorConfig)
+                .setMaxConnPerRoute(maxConnections)
+                .setMaxConnTotal(maxConnections)
+                .setThreadFactory(daemonThreads("SumoAsyncSenderThread"));
+
+        HttpProxySettingsCreator creator = new HttpProxySettingsCreator(getProxySettings());
+        creator.configureProxySettings(builder);
+
+        closeQuietly();
+        retryTimer = new ScheduledThreadPoolExecutor(1, daemonThreads("SumoRetryThread"));
+        CloseableHttpAsyncClient client = builder.build();
+        client.start();
+        asyncClient = client;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ScheduledExecutorService timer = retryTimer;
+            if (timer != null) {
+                timer.shutdownNow();
+            }
+            // Requests still in flight are cancelled, which gives up on them
+            if (asyncClient != null) {
+                asyncClient.close();
+            }
+            asyncClient = null;
+        } finally {
+            super.close();
+        }
+    }
+
+    @Override
+    public void send(List<byte[]> messages, String name, String category, String host,
+                     BufferFlushingTask.SendCallback callback) {
+        new Request(createEntity(messages), name, category, host, callback).run();
+    }
+
+    @Override
+    boolean keepTrying(HttpEntity entity, String name, String category, String host) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(false);
+        new Request(entity, name, category, host, new BufferFlushingTask.SendCallback() {
+            @Override
+            public void completed(boolean sent) {
+                result.set(sent);
+                done.countDown();
+            }
+        }).run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return result.get();
+    }
+
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            StatusLogger.getLogger().warn("Could not close previous HTTP client", e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName(name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // One request, through all its attempts; run() makes the next attempt
+    private class Request implements Runnable, FutureCallback<HttpResponse> {
+        private final HttpEntity entity;
+        private final String name;
+        private final String category;
+        private final String host;
+        private final BufferFlushingTask.SendCallback callback;
+
+        private final RetryPolicy policy = retryPolicy;
+        private final CircuitBreaker breaker = circuitBreaker;
+        private final long start = System.currentTimeMillis();
+        private int attempts = 0;
+
+        Request(HttpEntity entity, String name, String category, String host,
+                BufferFlushingTask.SendCallback callback) {
+            this.entity = entity;
+            this.name = name;
+            this.category = category;
+            this.host = host;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (breaker != null && !breaker.allowRequest()) {
+                // As for the blocking sender, the flusher leaves messages in the buffer meanwhile
+                StatusLogger.getLogger().debug("Not sending log request while Sumo Logic is unavailable");
+                callback.completed(false);
+                return;
+            }
+            try {
+                CloseableHttpAsyncClient client = asyncClient;
+                if (client == null)
+                    throw new IOException("Sender is closed");
+                client.execute(createPost(entity, name, category, host), this);
+            } catch (Exception e) {
+                failed(e);
+            }
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                StatusLogger.getLogger().warn(String.format("Received HTTP error from Sumo Service: %d", statusCode));
+                if (isRetryable(statusCode)) {
+                    failedAttempt(retryAfter(response));
+                    return;
+                }
+            } else {
+                StatusLogger.getLogger().debug("Successfully sent log request to Sumo Logic");
+            }
+            // Even a rejected request shows the collector is up
+            if (breaker != null) breaker.recordSuccess();
+            callback.completed(statusCode == 200);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            StatusLogger.getLogger().warn("Could not send log to Sumo Logic");
+            StatusLogger.getLogger().debug("Reason:", e);
+            failedAttempt(0);
+        }
+
+        @Override
+        public void cancelled() {
+            // Only when closing; a probe must not leave the breaker half open
+            if (breaker != null) breaker.recordFailure();
+            callback.completed(false);
+        }
+
+        private void failedAttempt(long retryAfter) {
+            if (breaker != null) breaker.recordFailure();
+            attempts++;
+            retryLater(policy.backoff(attempts, retryAfter));
+        }
+
+        private void retryLater(long wait) {
+            if (!shouldRetry(policy, attempts, start, wait)) {
+                StatusLogger.getLogger().warn(String.format("Giving up on log request to Sumo Logic after %d attempts", attempts));
+                callback.completed(false);
+                return;
+            }
+            ScheduledExecutorService timer = retryTimer;
+            try {
+                if (timer == null)
+                    throw new RejectedExecutionException();
+                timer.schedule(this, wait, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile
+                callback.completed(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+/**
+ * Stops requests from going out while the collector keeps failing them.
+ *
+ * After <tt>failureThreshold</tt> failed attempts in a row the breaker opens, and no request is
+ * let through for <tt>openTime</tt> ms. Then a single request is let through as a probe: if it
+ * succeeds the breaker closes again, otherwise it stays open for another <tt>openTime</tt> ms.
+ */
+class CircuitBreaker {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openTime;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+
+    CircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openTime = openTime;
+    }
+
+    /**
+     * Whether a request may go out now. Once the breaker has been open for long enough, only the
+     * first caller is let through, as the probe.
+     */
+    synchronized public boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (currentTime() - openedAt >= openTime) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether requests are currently held back, either for the open time or until the probe
+     * returns.
+     */
+    synchronized public boolean isOpen() {
+        return state == State.HALF_OPEN ||
+               (state == State.OPEN && currentTime() - openedAt < openTime);
+    }
+
+    /**
+     * How long (ms) until the next probe may go out, 0 if requests are let through.
+     */
+    synchronized public long getRemainingOpenTime() {
+        return state == State.OPEN ? Math.max(0, openedAt + openTime - currentTime()) : 0;
+    }
+
+    synchronized public void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    synchronized public void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = currentTime();
+        }
+    }
+
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+}
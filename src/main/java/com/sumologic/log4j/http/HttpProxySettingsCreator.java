@@ -8,6 +8,7 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.logging.log4j.status.StatusLogger;
 
 public class HttpProxySettingsCreator {
@@ -66,4 +67,21 @@ public class HttpProxySettingsCreator {
             }
         }
     }
+
+    public void configureProxySettings(HttpAsyncClientBuilder builder) {
+        proxySettings.validate();
+        String proxyHost = proxySettings.getHostname();
+        int proxyPort = proxySettings.getPort();
+        String proxyAuth = proxySettings.getAuthType();
+
+        if (proxyHost != null) {
+            HttpHost host = new HttpHost(proxyHost, proxyPort);
+            builder.setProxy(host);
+
+            if (proxyAuth != null) {
+                CredentialsProvider credsProvider = createCredentialsProvider();
+                builder.setDefaultCredentialsProvider(credsProvider);
+            }
+        }
+    }
 }
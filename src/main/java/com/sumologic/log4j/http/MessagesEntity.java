@@ -0,0 +1,142 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A request body made of buffered messages, written one after the other straight to the
+ * connection instead of being copied into a single array first. Compressed bodies are
+ * compressed while being written, and sent chunked since their length isn't known up front.
+ *
+ * Can be written any number of times, so that a failed request can be retried.
+ */
+class MessagesEntity extends AbstractHttpEntity {
+
+    private final List<byte[]> messages;
+    private final long length;
+    private final RequestCompressor compressor;   // Null to send the messages as they are
+
+    MessagesEntity(List<byte[]> messages, RequestCompressor compressor) {
+        this.messages = messages;
+        this.compressor = compressor;
+
+        long total = 0;
+        for (byte[] message: messages) {
+            total += message.length;
+        }
+        this.length = total;
+
+        if (compressor != null) {
+            setContentEncoding(compressor.getEncoding());
+            setChunked(true);
+        }
+    }
+
+    /**
+     * Size of the messages before any compression.
+     */
+    long getUncompressedLength() {
+        return length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return compressor != null ? -1 : length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (compressor == null) {
+            return new MessagesInputStream();
+        }
+        // Compressed up front, as compressing is driven by writing
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, length / 4 + 64));
+        writeTo(body);
+        return new ByteArrayInputStream(body.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        OutputStream target = compressor != null ? compressor.compressing(out) : out;
+        try {
+            for (byte[] message: messages) {
+                target.write(message);
+            }
+        } finally {
+            if (target != out) {
+                target.close();
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    // Reads the messages where they are, for clients which pull the body rather than write it
+    private class MessagesInputStream extends InputStream {
+        private int index = 0;
+        private int position = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (index < messages.size() && position >= messages.get(index).length) {
+                index++;
+                position = 0;
+            }
+            if (index == messages.size()) return -1;
+
+            byte[] message = messages.get(index);
+            int count = Math.min(len, message.length - position);
+            System.arraycopy(message, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses request bodies for <tt>Content-Encoding: gzip</tt> or <tt>deflate</tt>.
+ *
+ * Deflaters hold native memory which is only freed by {@link Deflater#end()}, so rather than
+ * creating one per request they are reset and kept in a pool. The pool keeps at most as many as
+ * were ever in use at the same time, up to a small limit.
+ */
+class RequestCompressor {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int MAX_POOLED = 16;
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final String encoding;
+    private final int level;
+    private final boolean gzip;
+
+    private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    RequestCompressor(String encoding, int level) {
+        if (!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding " + encoding);
+        }
+        this.encoding = encoding;
+        this.level = level;
+        this.gzip = GZIP.equals(encoding);
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public byte[] compress(byte[] body) {
+        Deflater deflater = borrow();
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+
+            int headerSize = gzip ? GZIP_HEADER_SIZE : 0;
+            int trailerSize = gzip ? GZIP_TRAILER_SIZE : 0;
+            // Log text usually shrinks a lot; grow when it doesn't
+            byte[] out = new byte[headerSize + body.length / 4 + 64 + trailerSize];
+            int length = headerSize;
+            while (!deflater.finished()) {
+                if (length == out.length - trailerSize) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - trailerSize - length);
+            }
+
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(body, 0, body.length);
+                length = writeInt(out, length, (int) crc.getValue());
+                length = writeInt(out, length, body.length);
+            }
+            return length == out.length ? out : Arrays.copyOf(out, length);
+        } finally {
+            giveBack(deflater);
+        }
+    }
+
+    /**
+     * Compress everything written to the returned stream into <tt>out</tt>, for bodies too large
+     * to hold twice in memory. Closing the returned stream finishes the compressed data but
+     * leaves <tt>out</tt> open.
+     */
+    public OutputStream compressing(OutputStream out) throws IOException {
+        if (gzip) {
+            out.write(GZIP_HEADER);
+        }
+        return new CompressingStream(out, borrow());
+    }
+
+    /**
+     * Free the pooled deflaters. The compressor can still be used afterwards.
+     */
+    public void close() {
+        Deflater deflater;
+        while ((deflater = pool.poll()) != null) {
+            pooled.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    int getPooled() {
+        return pooled.get();
+    }
+
+
+    private Deflater borrow() {
+        Deflater deflater = pool.poll();
+        if (deflater != null) {
+            pooled.decrementAndGet();
+            return deflater;
+        }
+        // gzip wraps the raw deflate stream itself; deflate means the zlib format
+        return new Deflater(level, gzip);
+    }
+
+    private void giveBack(Deflater deflater) {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            deflater.reset();
+            pool.offer(deflater);
+        } else {
+            pooled.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private class CompressingStream extends DeflaterOutputStream {
+        private final CRC32 crc = gzip ? new CRC32() : null;
+        private int size = 0;
+        private boolean closed = false;
+
+        CompressingStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, 8192);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (crc != null) {
+                crc.update(b, off, len);
+                size += len;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                finish();
+                if (crc != null) {
+                    byte[] trailer = new byte[GZIP_TRAILER_SIZE];
+                    writeInt(trailer, writeInt(trailer, 0, (int) crc.getValue()), size);
+                    out.write(trailer);
+                }
+                out.flush();
+            } finally {
+                giveBack(def);
+            }
+        }
+    }
+
+    // Little endian, as gzip wants it
+    private static int writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+}
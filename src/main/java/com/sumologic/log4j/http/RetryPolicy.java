@@ -0,0 +1,78 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long to wait before retrying a failed request, and when to give up on it.
+ *
+ * Waits grow exponentially from the initial interval up to the maximum, and each is drawn at
+ * random between 0 and that bound ("full jitter"), so that senders which failed together don't
+ * all retry together.
+ */
+class RetryPolicy {
+
+    private final long initialInterval;
+    private final long maxInterval;
+    private final int maxAttempts;     // 0 for no limit
+    private final long maxRetryTime;   // 0 for no limit
+
+    RetryPolicy(long initialInterval, long maxInterval, int maxAttempts, long maxRetryTime) {
+        this.initialInterval = Math.max(1, initialInterval);
+        this.maxInterval = Math.max(this.initialInterval, maxInterval);
+        this.maxAttempts = maxAttempts;
+        this.maxRetryTime = maxRetryTime;
+    }
+
+    /**
+     * Whether to try again after <tt>attempts</tt> failed attempts, the first of which started
+     * <tt>elapsed</tt> ms ago.
+     */
+    public boolean shouldRetry(int attempts, long elapsed) {
+        return (maxAttempts <= 0 || attempts < maxAttempts) &&
+               (maxRetryTime <= 0 || elapsed < maxRetryTime);
+    }
+
+    /**
+     * How long to wait (ms) after <tt>attempts</tt> failed attempts, at least <tt>minimum</tt> ms,
+     * e.g. as asked for by a Retry-After header.
+     */
+    public long backoff(int attempts, long minimum) {
+        long bound = initialInterval;
+        for (int i = 1; i < attempts && bound < maxInterval; i++) {
+            bound *= 2;
+        }
+        bound = Math.min(bound, maxInterval);
+        return Math.max(minimum, (long) (random() * (bound + 1)));
+    }
+
+    // Between 0 (inclusive) and 1 (exclusive)
+    protected double random() {
+        return ThreadLocalRandom.current().nextDouble();
+    }
+}
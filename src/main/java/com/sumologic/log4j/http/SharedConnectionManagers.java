@@ -0,0 +1,102 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection pools shared by every sender in the JVM posting to the same endpoint, so that
+ * several appenders pointed at one collector keep a single set of connections. A pool is shut
+ * down once the last sender using it releases it.
+ */
+final class SharedConnectionManagers {
+
+    private static class Entry {
+        final PoolingHttpClientConnectionManager manager;
+        int references = 0;
+
+        Entry(PoolingHttpClientConnectionManager manager) {
+            this.manager = manager;
+        }
+    }
+
+    private static final Map<String, Entry> managers = new HashMap<String, Entry>();
+
+    private SharedConnectionManagers() {
+    }
+
+    /**
+     * Scheme, host and port of the URL; appenders posting to different paths of a collector
+     * share connections.
+     */
+    static String endpointOf(String url) {
+        try {
+            URI uri = URI.create(url);
+            if (uri.getHost() != null) {
+                return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+            }
+        } catch (IllegalArgumentException e) {
+            // Fall through, and only share with the exact same URL
+        }
+        return url;
+    }
+
+    /**
+     * Get the pool for the endpoint, allowing at least <tt>maxConnections</tt> connections to it.
+     */
+    static synchronized PoolingHttpClientConnectionManager acquire(String endpoint, int maxConnections) {
+        Entry entry = managers.get(endpoint);
+        if (entry == null) {
+            entry = new Entry(new PoolingHttpClientConnectionManager());
+            entry.manager.setDefaultMaxPerRoute(maxConnections);
+            managers.put(endpoint, entry);
+        }
+        // Each sender asks for the connections it needs, so they add up
+        if (entry.references > 0) {
+            entry.manager.setDefaultMaxPerRoute(entry.manager.getDefaultMaxPerRoute() + maxConnections);
+        }
+        entry.manager.setMaxTotal(Math.max(entry.manager.getMaxTotal(), entry.manager.getDefaultMaxPerRoute()));
+        entry.references++;
+        return entry.manager;
+    }
+
+    static synchronized void release(String endpoint, int maxConnections) {
+        Entry entry = managers.get(endpoint);
+        if (entry == null) return;
+
+        if (--entry.references == 0) {
+            managers.remove(endpoint);
+            entry.manager.shutdown();
+        } else {
+            entry.manager.setDefaultMaxPerRoute(Math.max(1, entry.manager.getDefaultMaxPerRoute() - maxConnections));
+        }
+    }
+}
@@ -25,23 +25,38 @@
  */
 package com.sumologic.log4j.http;
 
+import com.sumologic.log4j.SumoRoute;
+import com.sumologic.log4j.aggregation.AdaptiveBatchSizer;
 import com.sumologic.log4j.aggregation.BufferFlushingTask;
 import com.sumologic.log4j.queue.BufferWithEviction;
 import org.apache.logging.log4j.status.StatusLogger;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author: Jose Muniz (jose@sumologic.com)
  */
-public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
+public class SumoBufferFlushingTask extends BufferFlushingTask<byte[], byte[]> {
 
     private SumoHttpSender sender;
     private long maxFlushInterval;
     private long messagesPerRequest;
     private String name;
+    private SumoRoute[] routes;
+    private AdaptiveBatchSizer batchSizer;
+    private ExecutorService[] lanes;  // Threads sending requests; null to send on the flusher thread
+    private boolean asyncSends;       // Whether the sender is left to drive requests without waiting for them
 
-    public SumoBufferFlushingTask(BufferWithEviction<String> queue) {
+    public SumoBufferFlushingTask(BufferWithEviction<byte[]> queue) {
         super(queue);
     }
 
@@ -49,6 +64,14 @@ public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
         this.name = name;
     }
 
+    /**
+     * With routes set, every message is tagged in the buffer with the index of its route plus
+     * one, or 0 if no route matched.
+     */
+    public void setRoutes(SumoRoute[] routes) {
+        this.routes = routes;
+    }
+
     public void setSender(SumoHttpSender sender) {
         this.sender = sender;
     }
@@ -61,6 +84,62 @@ public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
         this.maxFlushInterval = maxFlushInterval;
     }
 
+    /**
+     * Let the sizer pick the number of messages per request, instead of messagesPerRequest.
+     */
+    public void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+    }
+
+    /**
+     * Keep up to <tt>concurrency</tt> requests in flight. With <tt>preserveOrdering</tt>, the
+     * requests of a route are sent one at a time, in order, and only different routes are sent in
+     * parallel.
+     */
+    public void setConcurrency(int concurrency, boolean preserveOrdering) {
+        setMaxInFlight(concurrency);
+        // An async sender needs no threads of ours, but can't keep a route's requests in order
+        asyncSends = sender != null && sender.isAsync() && (concurrency <= 1 || !preserveOrdering);
+        if (concurrency <= 1 || asyncSends) return;
+
+        // A single threaded lane per route keeps its order; otherwise all threads share one lane
+        int numLanes = preserveOrdering ? concurrency : 1;
+        int threadsPerLane = preserveOrdering ? 1 : concurrency;
+        lanes = new ExecutorService[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = Executors.newFixedThreadPool(threadsPerLane, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("SumoSenderThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether the sender is holding back requests; messages are better left in the buffer then.
+     */
+    public boolean isSuspended() {
+        return sender != null && sender.isSuspended();
+    }
+
+    // Requests held back by the circuit breaker are sent again once it lets them through
+    @Override
+    protected boolean shouldHold() {
+        return isSuspended();
+    }
+
+    public void shutdown() {
+        if (lanes != null) {
+            for (ExecutorService lane: lanes) {
+                lane.shutdownNow();
+            }
+        }
+    }
+
     @Override
     protected long getMaxFlushInterval() {
         return maxFlushInterval;
@@ -68,7 +147,19 @@ public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
 
     @Override
     protected long getMessagesPerRequest() {
-        return messagesPerRequest;
+        return batchSizer != null ? batchSizer.getBatchSize() : messagesPerRequest;
+    }
+
+    @Override
+    protected long getMaxMessagesPerRequest() {
+        return batchSizer != null ? batchSizer.getBatchSize() : super.getMaxMessagesPerRequest();
+    }
+
+    @Override
+    protected void onSent(int messages, long latency, boolean sent) {
+        if (batchSizer != null) {
+            batchSizer.record(messages, latency, sent);
+        }
     }
 
     @Override
@@ -77,20 +168,127 @@ public class SumoBufferFlushingTask extends BufferFlushingTask<String, String> {
     }
 
     @Override
-    protected String aggregate(List<String> messages) {
-        StringBuilder builder = new StringBuilder(messages.size() * 10);
-        for (String message: messages) {
-            builder.append(message);
-        }
-        return builder.toString();
+    protected void send(List<byte[]> messages, SendCallback callback) {
+        send(messages, null, callback);
     }
 
     @Override
-    protected void sendOut(String body, String name) {
+    protected void send(List<byte[]> messages, List<Integer> tags, final SendCallback callback) {
+        Map<Integer, List<byte[]>> batches = splitByRoute(messages, tags);
+        if (lanes == null && !asyncSends) {
+            boolean sent = true;
+            for (Map.Entry<Integer, List<byte[]>> batch: batches.entrySet()) {
+                sent &= sendBatch(batch.getKey(), batch.getValue());
+            }
+            callback.completed(sent);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(batches.size());
+        final AtomicBoolean allSent = new AtomicBoolean(true);
+        if (asyncSends) {
+            SendCallback routeDone = new SendCallback() {
+                @Override
+                public void completed(boolean sent) {
+                    if (!sent) {
+                        allSent.set(false);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        callback.completed(allSent.get());
+                    }
+                }
+            };
+            for (Map.Entry<Integer, List<byte[]>> batch: batches.entrySet()) {
+                sendBatch(batch.getKey(), batch.getValue(), routeDone);
+            }
+            return;
+        }
+
+        for (final Map.Entry<Integer, List<byte[]>> batch: batches.entrySet()) {
+            ExecutorService lane = lanes[batch.getKey() % lanes.length];
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean sent = false;
+                    try {
+                        sent = sendBatch(batch.getKey(), batch.getValue());
+                    } finally {
+                        if (!sent) {
+                            allSent.set(false);
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            callback.completed(allSent.get());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+
+    // One request per route, in the order the routes first show up
+    private Map<Integer, List<byte[]>> splitByRoute(List<byte[]> messages, List<Integer> tags) {
+        Map<Integer, List<byte[]>> batches = new LinkedHashMap<Integer, List<byte[]>>();
+        if (!hasRoutes() || tags == null) {
+            batches.put(0, messages);
+            return batches;
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            Integer route = tags.get(i);
+            List<byte[]> batch = batches.get(route);
+            if (batch == null) {
+                batch = new ArrayList<byte[]>();
+                batches.put(route, batch);
+            }
+            batch.add(messages.get(i));
+        }
+        return batches;
+    }
+
+    private boolean sendBatch(int route, List<byte[]> messages) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(false);
+        sendBatch(route, messages, new SendCallback() {
+            @Override
+            public void completed(boolean sent) {
+                result.set(sent);
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return result.get();
+    }
+
+    // Calls back before returning unless the sender is async
+    private void sendBatch(int route, List<byte[]> messages, SendCallback callback) {
+        int index = route - 1;
+        // Spooled messages may refer to routes that are no longer configured
+        if (!hasRoutes() || index < 0 || index >= routes.length) {
+            sendOut(messages, name, null, null, callback);
+            return;
+        }
+        SumoRoute sumoRoute = routes[index];
+        String routeName = sumoRoute.getSourceName() != null ? sumoRoute.getSourceName() : name;
+        sendOut(messages, routeName, sumoRoute.getSourceCategory(), sumoRoute.getSourceHost(), callback);
+    }
+
+    private boolean hasRoutes() {
+        return routes != null && routes.length > 0;
+    }
+
+    private void sendOut(List<byte[]> messages, String name, String category, String host,
+                         SendCallback callback) {
         if (sender != null && sender.isInitialized()) {
-            sender.send(body, name);
+            sender.send(messages, name, category, host, callback);
         } else {
             StatusLogger.getLogger().error("HTTPSender is not initialized");
+            callback.completed(false);
         }
     }
 }
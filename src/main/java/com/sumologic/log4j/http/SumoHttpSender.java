@@ -25,11 +25,15 @@
  */
 package com.sumologic.log4j.http;
 
+import com.sumologic.log4j.aggregation.BufferFlushingTask;
 import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
@@ -38,19 +42,35 @@ import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.status.StatusLogger;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author: Jose Muniz (jose@sumologic.com)
  */
 public class SumoHttpSender {
 
+    static final ContentType CONTENT_TYPE = ContentType.create("text/plain", Consts.UTF_8);
+
     private long retryInterval = 10000L;
+    private long maxRetryInterval = 60000L;
+    private int maxRetryAttempts = 0;
+    private long maxRetryTime = 0;
+    private int circuitBreakerThreshold = 0;
+    private long circuitBreakerOpenTime = 30000L;
+    volatile RetryPolicy retryPolicy = null;
+    volatile CircuitBreaker circuitBreaker = null;
+    volatile long giveUpAt = Long.MAX_VALUE;   // No retry is waited for past this time (ms since the epoch)
 
     private volatile String url = null;
     private volatile ProxySettings proxySettings = null;
 
-    private int connectionTimeout = 1000;
-    private int socketTimeout = 60000;
+    int connectionTimeout = 1000;
+    int socketTimeout = 60000;
+    int maxConnections = 2;
+    private boolean shareConnections = false;
+    private String sharedEndpoint = null;   // Whose shared pool this sender holds on to, if any
+    private volatile RequestCompressor compressor = null;
+    private int compressionMinSize = 0;
     private volatile CloseableHttpClient httpClient = null;
 
     public ProxySettings getProxySettings() {
@@ -65,6 +85,37 @@ public class SumoHttpSender {
         this.retryInterval = retryInterval;
     }
 
+    /**
+     * Longest wait between two attempts; waits double from retryInterval up to this.
+     */
+    public void setMaxRetryInterval(long maxRetryInterval) {
+        this.maxRetryInterval = maxRetryInterval;
+    }
+
+    /**
+     * Give up on a request after this many attempts, 0 for no limit.
+     */
+    public void setMaxRetryAttempts(int maxRetryAttempts) {
+        this.maxRetryAttempts = maxRetryAttempts;
+    }
+
+    /**
+     * Give up on a request once this many ms have passed since its first attempt, 0 for no limit.
+     */
+    public void setMaxRetryTime(long maxRetryTime) {
+        this.maxRetryTime = maxRetryTime;
+    }
+
+    /**
+     * Hold back all requests for <tt>openTime</tt> ms after <tt>threshold</tt> attempts in a row
+     * failed, then let a single one through to see whether the collector is back. A threshold of
+     * 0 turns this off.
+     */
+    public void setCircuitBreaker(int threshold, long openTime) {
+        this.circuitBreakerThreshold = threshold;
+        this.circuitBreakerOpenTime = openTime;
+    }
+
     public void setUrl(String url) {
         this.url = url;
     }
@@ -77,19 +128,81 @@ public class SumoHttpSender {
         this.socketTimeout = socketTimeout;
     }
 
+    /**
+     * How many connections to keep open to the endpoint, at least one per request in flight.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Whether to use the connection pool shared with other senders posting to the same endpoint.
+     */
+    public void setShareConnections(boolean shareConnections) {
+        this.shareConnections = shareConnections;
+    }
+
+    /**
+     * Compress request bodies of at least <tt>minSize</tt> bytes with the given encoding,
+     * "gzip" or "deflate", at the given {@link java.util.zip.Deflater} level. A null encoding
+     * turns compression off.
+     */
+    public void setCompression(String encoding, int level, int minSize) {
+        RequestCompressor old = compressor;
+        compressor = encoding == null ? null : new RequestCompressor(encoding, level);
+        compressionMinSize = minSize;
+        if (old != null) {
+            old.close();
+        }
+    }
+
     public boolean isInitialized() {
         return httpClient != null;
     }
 
+    /**
+     * Whether {@link #send(List, int, String, String, String, BufferFlushingTask.SendCallback)}
+     * returns before the request is done.
+     */
+    public boolean isAsync() {
+        return false;
+    }
+
+    /**
+     * Stop retrying once <tt>deadline</tt> (in ms since the epoch) has passed, whatever the retry
+     * limits allow, e.g. when shutting down. Lasts until the sender is initialized again.
+     */
+    public void giveUpBy(long deadline) {
+        giveUpAt = deadline;
+    }
+
+    /**
+     * Whether requests are being held back because the collector kept failing them.
+     */
+    public boolean isSuspended() {
+        CircuitBreaker breaker = circuitBreaker;
+        return breaker != null && breaker.isOpen();
+    }
+
     public void init() {
-        RequestConfig requestConfig = RequestConfig.custom()
-                .setSocketTimeout(socketTimeout)
-                .setConnectTimeout(connectionTimeout)
-                .build();
+        RequestConfig requestConfig = createRequestConfig();
+
+        releaseSharedConnections();
+        initRetries();
 
         HttpClientBuilder builder = HttpClients.custom()
-                .setConnectionManager(new PoolingHttpClientConnectionManager())
                 .setDefaultRequestConfig(requestConfig);
+        if (shareConnections && url != null) {
+            // Closing this client leaves the shared pool alone; it goes once nobody uses it
+            sharedEndpoint = SharedConnectionManagers.endpointOf(url);
+            builder.setConnectionManager(SharedConnectionManagers.acquire(sharedEndpoint, maxConnections))
+                   .setConnectionManagerShared(true);
+        } else {
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+            connectionManager.setMaxTotal(Math.max(connectionManager.getMaxTotal(), maxConnections));
+            builder.setConnectionManager(connectionManager);
+        }
 
         HttpProxySettingsCreator creator = new HttpProxySettingsCreator(proxySettings);
         creator.configureProxySettings(builder);
@@ -98,51 +211,199 @@ public class SumoHttpSender {
     }
 
     public void close() throws IOException {
-        httpClient.close();
-        httpClient = null;
+        try {
+            if (httpClient != null)
+                httpClient.close();
+            httpClient = null;
+        } finally {
+            releaseSharedConnections();
+            if (compressor != null) {
+                compressor.close();
+            }
+        }
     }
 
-    public void send(String body, String name) {
-        keepTrying(body, name);
+    /**
+     * Send the body, retrying while the service is unavailable, for as long as the retry limits
+     * allow. Fails right away while requests are held back by the circuit breaker.
+     * @return true if Sumo Logic accepted the request, false if it was rejected, held back, we
+     *         gave up on it, or we were interrupted before it could be sent.
+     */
+    public boolean send(byte[] body, String name) {
+        return send(body, name, null, null);
     }
 
-    private void keepTrying(String body, String name) {
-        boolean success = false;
+    /**
+     * Same as {@link #send(byte[], String)}, also setting the source category and host when they
+     * are not null.
+     */
+    public boolean send(byte[] body, String name, String category, String host) {
+        // Compressed once, however often it has to be retried
+        RequestCompressor currentCompressor = compressor;
+        if (currentCompressor != null && body.length >= compressionMinSize) {
+            byte[] compressed = currentCompressor.compress(body);
+            if (compressed.length < body.length) {
+                ByteArrayEntity entity = new ByteArrayEntity(compressed, CONTENT_TYPE);
+                entity.setContentEncoding(currentCompressor.getEncoding());
+                return keepTrying(entity, name, category, host);
+            }
+        }
+        return keepTrying(new ByteArrayEntity(body, CONTENT_TYPE), name, category, host);
+    }
+
+    /**
+     * Same as {@link #send(byte[], String, String, String)}, with the messages written one after
+     * the other as the body. The messages are streamed to the connection, and compressed on the
+     * way if compression is on, rather than copied into a body first.
+     */
+    public boolean send(List<byte[]> messages, String name, String category, String host) {
+        return keepTrying(createEntity(messages), name, category, host);
+    }
+
+    /**
+     * Same as {@link #send(List, String, String, String)}, calling back once the request
+     * was sent or given up on. Unless the sender {@link #isAsync()}, that happens before
+     * returning.
+     */
+    public void send(List<byte[]> messages, String name, String category, String host,
+                     BufferFlushingTask.SendCallback callback) {
+        callback.completed(send(messages, name, category, host));
+    }
+
+    RequestConfig createRequestConfig() {
+        return RequestConfig.custom()
+                .setSocketTimeout(socketTimeout)
+                .setConnectTimeout(connectionTimeout)
+                .build();
+    }
+
+    void initRetries() {
+        giveUpAt = Long.MAX_VALUE;
+        retryPolicy = new RetryPolicy(retryInterval, maxRetryInterval, maxRetryAttempts, maxRetryTime);
+        circuitBreaker = circuitBreakerThreshold > 0
+                ? new CircuitBreaker(circuitBreakerThreshold, circuitBreakerOpenTime)
+                : null;
+    }
+
+    MessagesEntity createEntity(List<byte[]> messages) {
+        MessagesEntity entity = new MessagesEntity(messages, null);
+        RequestCompressor currentCompressor = compressor;
+        if (currentCompressor != null && entity.getUncompressedLength() >= compressionMinSize) {
+            entity = new MessagesEntity(messages, currentCompressor);
+        }
+        entity.setContentType(CONTENT_TYPE.toString());
+        return entity;
+    }
+
+    HttpPost createPost(HttpEntity entity, String name, String category, String host) throws IOException {
+        if (url == null)
+            throw new IOException("Unknown endpoint");
+
+        HttpPost post = new HttpPost(url);
+        post.setHeader("X-Sumo-Name", name);
+        if (category != null)
+            post.setHeader("X-Sumo-Category", category);
+        if (host != null)
+            post.setHeader("X-Sumo-Host", host);
+        post.setEntity(entity);
+        return post;
+    }
+
+    private void releaseSharedConnections() {
+        if (sharedEndpoint != null) {
+            SharedConnectionManagers.release(sharedEndpoint, maxConnections);
+            sharedEndpoint = null;
+        }
+    }
+
+    boolean keepTrying(HttpEntity entity, String name, String category, String host) {
+        RetryPolicy policy = retryPolicy;
+        CircuitBreaker breaker = circuitBreaker;
+        long start = System.currentTimeMillis();
+        int attempts = 0;
         do {
+            // Rather than holding on to the thread; the flusher leaves messages in the buffer meanwhile
+            if (breaker != null && !breaker.allowRequest()) {
+                StatusLogger.getLogger().debug("Not sending log request while Sumo Logic is unavailable");
+                break;
+            }
+            long wait;
             try {
-                trySend(body, name);
-                success = true;
+                boolean sent = trySend(entity, name, category, host);
+                // Even a rejected request shows the collector is up
+                if (breaker != null) breaker.recordSuccess();
+                return sent;
             } catch (Exception e) {
-                try {
-                    Thread.sleep(retryInterval);
-                } catch (InterruptedException e1) {
-                    break;
-                }
+                if (breaker != null) breaker.recordFailure();
+                attempts++;
+                long retryAfter = e instanceof RetryLaterException ? ((RetryLaterException) e).retryAfter : 0;
+                wait = policy.backoff(attempts, retryAfter);
+            }
+            if (!shouldRetry(policy, attempts, start, wait)) {
+                StatusLogger.getLogger().warn(String.format("Giving up on log request to Sumo Logic after %d attempts", attempts));
+                break;
             }
-        } while (!success && !Thread.currentThread().isInterrupted());
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e1) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        } while (!Thread.currentThread().isInterrupted());
+        return false;
     }
 
-    private void trySend(String body, String name) throws IOException {
-        HttpPost post = null;
+    boolean shouldRetry(RetryPolicy policy, int attempts, long start, long wait) {
+        long now = System.currentTimeMillis();
+        return now + wait < giveUpAt && policy.shouldRetry(attempts, now - start + wait);
+    }
+
+    // Too many requests (429), and server errors, are worth retrying
+    static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    // Seconds to wait as asked for by the server, in ms, or 0
+    static long retryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null) return 0;
         try {
-            if (url == null)
-                throw new IOException("Unknown endpoint");
+            return Math.max(0, Long.parseLong(header.getValue().trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // An HTTP date; not worth parsing
+            return 0;
+        }
+    }
+
+    static class RetryLaterException extends IOException {
+        private static final long serialVersionUID = 1L;
 
-            post = new HttpPost(url);
-            post.setHeader("X-Sumo-Name", name);
-            post.setEntity(new StringEntity(body, Consts.UTF_8));
+        final long retryAfter;
+
+        RetryLaterException(String message, long retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    private boolean trySend(HttpEntity entity, String name, String category, String host) throws IOException {
+        HttpPost post = null;
+        try {
+            post = createPost(entity, name, category, host);
             HttpResponse response = httpClient.execute(post);
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode != 200) {
                 StatusLogger.getLogger().warn(String.format("Received HTTP error from Sumo Service: %d", statusCode));
-                // Not success. Only retry if status is unavailable.
-                if (statusCode == 503) {
-                    throw new IOException("Server unavailable");
+                // Not success. Only retry if the server may accept it later.
+                if (isRetryable(statusCode)) {
+                    EntityUtils.consume(response.getEntity());
+                    throw new RetryLaterException("Server unavailable", retryAfter(response));
                 }
             }
             //need to consume the body if you want to re-use the connection.
             StatusLogger.getLogger().debug("Successfully sent log request to Sumo Logic");
             EntityUtils.consume(response.getEntity());
+            return statusCode == 200;
         } catch (IOException e) {
             StatusLogger.getLogger().warn("Could not send log to Sumo Logic");
             StatusLogger.getLogger().debug("Reason:", e);
@@ -0,0 +1,224 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Wraps another buffer so that a full buffer slows producers down or turns new messages away,
+ * instead of evicting messages already buffered.
+ *
+ * With a timeout of zero, a message which does not fit is dropped. Otherwise the producer parks
+ * until the consumer drains (or commits) enough to make room, or until the timeout passes, in
+ * which case the message is dropped. Producers only take the lock when the buffer is full, and
+ * the consumer only signals when someone is waiting. Producers racing for the last bytes of room
+ * may still make the wrapped buffer evict.
+ */
+public class BufferWithBackpressure<T> extends BufferWithEviction<T> {
+
+    private BufferWithEviction<T> buffer;
+    private CostAssigner<T> costAssigner;
+    private long timeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition roomAvailable = lock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    public BufferWithBackpressure(BufferWithEviction<T> buffer, CostAssigner<T> costAssigner, long timeoutMillis) {
+        super(buffer.getCapacity());
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+
+        this.buffer = buffer;
+        this.costAssigner = costAssigner;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        buffer.setCapacity(capacity);
+        super.setCapacity(capacity);
+    }
+
+    /**
+     * New messages dropped on overflow are counted together with the wrapped buffer's evictions.
+     */
+    @Override
+    public EvictionCounter getEvictions() {
+        return buffer.getEvictions();
+    }
+
+    @Override
+    protected T evict() {
+        return buffer.evict();
+    }
+
+    @Override
+    protected boolean evict(long cost) {
+        return buffer.evict(cost);
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public long cost() {
+        return buffer.cost();
+    }
+
+    @Override
+    public boolean hasRoomFor(long cost) {
+        return buffer.hasRoomFor(cost);
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection) {
+        int elementsDrained = buffer.drainTo(collection);
+        if (elementsDrained > 0) {
+            signalWaiters();
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements) {
+        int elementsDrained = buffer.drainTo(collection, maxElements);
+        if (elementsDrained > 0) {
+            signalWaiters();
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public void commit() {
+        buffer.commit();
+        signalWaiters();
+    }
+
+    @Override
+    public Object getDrainedPosition() {
+        return buffer.getDrainedPosition();
+    }
+
+    @Override
+    public void commit(Object position) {
+        buffer.commit(position);
+        signalWaiters();
+    }
+
+    @Override
+    public boolean rewind() {
+        return buffer.rewind();
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements, Collection<Integer> tags) {
+        int elementsDrained = buffer.drainTo(collection, maxElements, tags);
+        if (elementsDrained > 0) {
+            signalWaiters();
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public void close() {
+        buffer.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return buffer.isClosed();
+    }
+
+    @Override
+    public boolean add(T element) {
+        return add(element, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean add(T element, int level) {
+        return add(element, level, 0);
+    }
+
+    @Override
+    public boolean add(T element, int level, int tag) {
+        long eCost = costAssigner.cost(element);
+        if (buffer.hasRoomFor(eCost)) {
+            return buffer.add(element, level, tag);
+        }
+        if (timeoutNanos == 0 || eCost > getCapacity()) {
+            return drop(eCost);
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        lock.lock();
+        waiting.incrementAndGet();
+        try {
+            while (!buffer.hasRoomFor(eCost)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return drop(eCost);
+                }
+                roomAvailable.awaitNanos(remaining);
+            }
+            return buffer.add(element, level, tag);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return drop(eCost);
+        } finally {
+            waiting.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+
+    private void signalWaiters() {
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                roomAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean drop(long eCost) {
+        getEvictions().record(1, eCost);
+        return false;
+    }
+}
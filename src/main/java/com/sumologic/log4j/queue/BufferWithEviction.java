@@ -37,7 +37,8 @@ import java.util.Collection;
  */
 public abstract class BufferWithEviction<Q> {
 
-    private long capacity;
+    private volatile long capacity;
+    private final EvictionCounter evictions = new EvictionCounter();
 
     public BufferWithEviction(long capacity) {
         this.capacity = capacity;
@@ -47,15 +48,122 @@ public abstract class BufferWithEviction<Q> {
         return capacity;
     }
 
+    /**
+     * Return the running totals of what this buffer evicted to stay within its capacity.
+     */
+    public EvictionCounter getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Change the capacity. Shrinking it below the current cost evicts right away.
+     */
     public void setCapacity(long capacity) {
         this.capacity = capacity;
+        if (cost() > capacity) {
+            evict(0);
+        }
     }
 
 
     protected abstract Q evict();
     protected abstract boolean evict(long cost);
     public abstract int size();
+    public abstract long cost();
+
+    /**
+     * Whether an element of the given cost can be added right now without evicting anything.
+     */
+    public boolean hasRoomFor(long cost) {
+        return cost() + cost <= getCapacity();
+    }
     public abstract int drainTo(Collection<Q> collection);
+
+    /**
+     * Drain at most <tt>maxElements</tt> elements. Buffers which can't stop early hand out
+     * everything, as {@link #drainTo(Collection)} does; those in this package all can.
+     */
+    public int drainTo(Collection<Q> collection, int maxElements) {
+        return drainTo(collection);
+    }
     public abstract boolean add(Q element);
 
+    /**
+     * Add an element logged at the given log4j <tt>intLevel</tt>. Buffers which take the level
+     * into account when evicting override this; by default the level is ignored.
+     */
+    public boolean add(Q element, int level) {
+        return add(element);
+    }
+
+    /**
+     * Same as {@link #add(Object, int)}, keeping <tt>tag</tt> next to the element to be handed
+     * back by {@link #drainTo(Collection, int, Collection)}, e.g. to tell where it is sent without
+     * looking into it. Tag 0 means none; buffers which can't keep tags only take that one.
+     */
+    public boolean add(Q element, int level, int tag) {
+        if (tag != 0) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " does not keep tags");
+        }
+        return add(element, level);
+    }
+
+    /**
+     * Same as {@link #drainTo(Collection, int)}, adding the tag of every element drained to
+     * <tt>tags</tt>, in the same order.
+     */
+    public int drainTo(Collection<Q> collection, int maxElements, Collection<Integer> tags) {
+        int elementsDrained = drainTo(collection, maxElements);
+        for (int i = 0; i < elementsDrained; i++) {
+            tags.add(0);
+        }
+        return elementsDrained;
+    }
+
+    /**
+     * Acknowledge that everything handed out by {@link #drainTo(Collection)} so far has been
+     * delivered. Buffers that persist their contents use this to release them; others need not
+     * do anything.
+     */
+    public void commit() {
+    }
+
+    /**
+     * Where the last drain ended, to pass to {@link #commit(Object)} once everything drained up
+     * to there was delivered. Null for buffers which don't keep drained elements around.
+     */
+    public Object getDrainedPosition() {
+        return null;
+    }
+
+    /**
+     * Acknowledge that everything drained up to <tt>position</tt>, as returned by
+     * {@link #getDrainedPosition()}, has been delivered.
+     */
+    public void commit(Object position) {
+    }
+
+    /**
+     * Hand out everything drained but not committed again on the next drain, because some of it
+     * could not be delivered. Buffers which don't keep drained elements around can't.
+     * @return true if the elements will be handed out again.
+     */
+    public boolean rewind() {
+        return false;
+    }
+
+    /**
+     * Release what the buffer holds outside the heap. Buffers which hold nothing there need not
+     * do anything, and keep working.
+     */
+    public void close() {
+    }
+
+    /**
+     * Whether {@link #close()} left the buffer unusable, so that it has to be created again.
+     */
+    public boolean isClosed() {
+        return false;
+    }
+
 }
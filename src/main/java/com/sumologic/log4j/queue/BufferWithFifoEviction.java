@@ -25,8 +25,6 @@
  */
 package com.sumologic.log4j.queue;
 
-import org.apache.logging.log4j.status.StatusLogger;
-
 import java.util.Collection;
 
 import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
@@ -56,32 +54,29 @@ public class BufferWithFifoEviction<T> extends BufferWithEviction<T> {
         this.costAssigner = costAssigner;
     }
 
+    @Override
+    synchronized public void setCapacity(long capacity) {
+        queue.setCapacity(capacity);
+        super.setCapacity(capacity);
+    }
+
     @Override
     protected T evict() {
         return queue.poll();
     }
 
     /**
-     * Make room for inserting an element with cost <tt>cost</tt>
+     * Make room for inserting an element with cost <tt>cost</tt>, evicting the oldest elements
+     * in one batch. At least one element is evicted.
      * @param cost the desired cost to evict
      * @return true if eviction was successful, false otherwise.
      */
     protected boolean evict(long cost) {
 
-        int numEvicted = 0;
-
-
         if (cost > getCapacity()) return false;
 
-        long targetCost = getCapacity() - cost;
-        do {
-            numEvicted++;
-            evict();
-        } while (queue.cost() > targetCost);
-
-        if (numEvicted > 0) {
-            StatusLogger.getLogger().warn("Evicted " + numEvicted + " messages from buffer");
-        }
+        long excess = queue.cost() - (getCapacity() - cost);
+        queue.evict(Math.max(1, excess), getEvictions());
 
         return true;
     }
@@ -91,17 +86,38 @@ public class BufferWithFifoEviction<T> extends BufferWithEviction<T> {
         return queue.size();
     }
 
+    @Override
+    public long cost() {
+        return queue.cost();
+    }
+
     @Override
     public int drainTo(Collection<T> collection) {
         return queue.drainTo(collection);
     }
 
     @Override
-    synchronized public boolean add(T element) {
-        boolean wasSuccessful = queue.offer(element);
+    public int drainTo(Collection<T> collection, int maxElements) {
+        return queue.drainTo(collection, maxElements);
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements, Collection<Integer> tags) {
+        return queue.drainTo(collection, maxElements, tags);
+    }
+
+    @Override
+    public boolean add(T element) {
+        return add(element, Integer.MAX_VALUE, 0);
+    }
+
+    @Override
+    synchronized public boolean add(T element, int level, int tag) {
+        long eCost = costAssigner.cost(element);
+        boolean wasSuccessful = queue.offer(element, eCost, tag);
         if (! wasSuccessful) {
-            evict(costAssigner.cost(element));
-            return queue.offer(element);
+            evict(eCost);
+            return queue.offer(element, eCost, tag);
         }
 
         return true;
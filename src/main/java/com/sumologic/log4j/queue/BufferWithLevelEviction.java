@@ -0,0 +1,243 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer which keeps one FIFO queue per log level under a shared capacity. When the capacity is
+ * reached, messages of the least severe level go first, oldest first within a level. A message
+ * never pushes out one more severe than itself; if that is the only way to make room, the new
+ * message is dropped instead.
+ *
+ * Levels are log4j <tt>intLevel</tt> values, so a larger level is less severe. Draining merges
+ * the queues back into the order in which messages were added.
+ */
+public class BufferWithLevelEviction<T> extends BufferWithEviction<T> {
+
+    // OFF, FATAL, ERROR, WARN, INFO, DEBUG, TRACE and ALL, 100 intLevel apart
+    private static final int NUM_LEVELS = 8;
+
+    private static class Entry<T> {
+        final T element;
+        final long cost;
+        final long sequence;
+        final int tag;
+
+        Entry(T element, long cost, long sequence, int tag) {
+            this.element = element;
+            this.cost = cost;
+            this.sequence = sequence;
+            this.tag = tag;
+        }
+    }
+
+    // The queue of one level, and the cost of what it holds
+    private static class Level<T> {
+        final ArrayDeque<Entry<T>> entries = new ArrayDeque<Entry<T>>();
+        long cost = 0;
+    }
+
+    private List<Level<T>> levels;
+    private CostAssigner<T> costAssigner;
+    private long cost = 0;
+    private int size = 0;
+    private long nextSequence = 0;
+
+    public BufferWithLevelEviction(long capacity, CostAssigner<T> costAssigner) {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.levels = new ArrayList<Level<T>>(NUM_LEVELS);
+        for (int i = 0; i < NUM_LEVELS; i++) {
+            levels.add(new Level<T>());
+        }
+        this.costAssigner = costAssigner;
+    }
+
+    @Override
+    synchronized public void setCapacity(long capacity) {
+        super.setCapacity(capacity);
+    }
+
+    @Override
+    synchronized protected T evict() {
+        Entry<T> entry = evictUpTo(NUM_LEVELS - 1);
+        return entry == null ? null : entry.element;
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>, evicting from the least
+     * severe levels first.
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    synchronized protected boolean evict(long cost) {
+        return evict(cost, NUM_LEVELS - 1);
+    }
+
+    @Override
+    synchronized public int size() {
+        return size;
+    }
+
+    @Override
+    synchronized public long cost() {
+        return cost;
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<T> collection, int maxElements) {
+        return drainTo(collection, maxElements, null);
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<T> collection, int maxElements, Collection<Integer> tags) {
+        int elementsDrained = 0;
+        while (size > 0 && elementsDrained < maxElements) {
+            // Merge by sequence number; there are only a handful of levels to look at
+            Level<T> oldest = null;
+            for (Level<T> level : levels) {
+                Entry<T> head = level.entries.peekFirst();
+                if (head != null && (oldest == null || head.sequence < oldest.entries.peekFirst().sequence)) {
+                    oldest = level;
+                }
+            }
+            Entry<T> entry = remove(oldest);
+            collection.add(entry.element);
+            if (tags != null) {
+                tags.add(entry.tag);
+            }
+            elementsDrained++;
+        }
+
+        return elementsDrained;
+    }
+
+    /**
+     * Messages added without a level are treated as the least severe.
+     */
+    @Override
+    public boolean add(T element) {
+        return add(element, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean add(T element, int level) {
+        return add(element, level, 0);
+    }
+
+    @Override
+    synchronized public boolean add(T element, int level, int tag) {
+        int index = indexOf(level);
+        long eCost = costAssigner.cost(element);
+        if (cost + eCost > getCapacity() && !evict(eCost, index)) {
+            return false;
+        }
+
+        Level<T> target = levels.get(index);
+        target.entries.addLast(new Entry<T>(element, eCost, nextSequence++, tag));
+        target.cost += eCost;
+        cost += eCost;
+        size++;
+        return true;
+    }
+
+
+    private boolean evict(long eCost, int mostSevereIndex) {
+
+        int numEvicted = 0;
+        long evictedCost = 0;
+
+
+        if (eCost > getCapacity()) return false;
+
+        // Don't evict anything unless it makes enough room
+        long targetCost = getCapacity() - eCost;
+        if (cost - evictableCost(mostSevereIndex) > targetCost) return false;
+
+        while (cost > targetCost) {
+            Entry<T> entry = evictUpTo(mostSevereIndex);
+            if (entry == null) break;
+            evictedCost += entry.cost;
+            numEvicted++;
+        }
+
+        getEvictions().record(numEvicted, evictedCost);
+
+        return cost <= targetCost;
+    }
+
+    // Cost of the entries at the given level or less severe
+    private long evictableCost(int mostSevereIndex) {
+        long evictable = 0;
+        for (int i = NUM_LEVELS - 1; i >= mostSevereIndex; i--) {
+            evictable += levels.get(i).cost;
+        }
+        return evictable;
+    }
+
+    // Removes the oldest entry of the least severe non-empty level, not going past the given level
+    private Entry<T> evictUpTo(int mostSevereIndex) {
+        for (int i = NUM_LEVELS - 1; i >= mostSevereIndex; i--) {
+            Level<T> level = levels.get(i);
+            if (!level.entries.isEmpty()) {
+                return remove(level);
+            }
+        }
+        return null;
+    }
+
+    private Entry<T> remove(Level<T> level) {
+        Entry<T> entry = level.entries.pollFirst();
+        level.cost -= entry.cost;
+        cost -= entry.cost;
+        size--;
+        return entry;
+    }
+
+    private static int indexOf(int level) {
+        if (level < 0) return 0;
+        return Math.min(level / 100, NUM_LEVELS - 1);
+    }
+}
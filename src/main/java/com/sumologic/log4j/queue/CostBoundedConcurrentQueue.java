@@ -25,7 +25,9 @@
  */
 package com.sumologic.log4j.queue;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -42,15 +44,28 @@ public class CostBoundedConcurrentQueue<T> {
         public long cost(T e);
     }
 
-    private LinkedBlockingQueue<T> queue;
+    // The cost is computed once on offer and travels with the element, as does its tag
+    private static class Entry<T> {
+        final T element;
+        final long cost;
+        final int tag;
+
+        Entry(T element, long cost, int tag) {
+            this.element = element;
+            this.cost = cost;
+            this.tag = tag;
+        }
+    }
+
+    private LinkedBlockingQueue<Entry<T>> queue;
     private CostAssigner<T> costAssigner;
 
-    private long capacity = 0;
+    private volatile long capacity = 0;
     private AtomicLong cost = new AtomicLong(0);
 
 
     public CostBoundedConcurrentQueue(long capacity, CostAssigner<T> costAssigner) {
-        this.queue = new LinkedBlockingQueue<T>();
+        this.queue = new LinkedBlockingQueue<Entry<T>>();
         this.costAssigner = costAssigner;
         this.capacity = capacity;
     }
@@ -64,6 +79,14 @@ public class CostBoundedConcurrentQueue<T> {
         return cost.get();
     }
 
+    /**
+     * Change the maximum cost. Elements already in the queue are left alone.
+     * @param capacity the new capacity
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
     /**
      * Return the number of elements in the queue.
      * @return the count
@@ -80,17 +103,66 @@ public class CostBoundedConcurrentQueue<T> {
      * @return the number of elements transferred
      */
     public int drainTo(Collection<T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
 
-        assert collection.isEmpty();
+    /**
+     * Same as {@link #drainTo(Collection)}, removing at most <tt>maxElements</tt> elements.
+     */
+    public int drainTo(Collection<T> collection, int maxElements) {
+        return drainTo(collection, maxElements, null);
+    }
 
-        int elementsDrained = queue.drainTo(collection);
-        for (T e: collection) {
-            cost.addAndGet(- costAssigner.cost(e));
+    /**
+     * Same as {@link #drainTo(Collection, int)}, adding the tag each element was offered with to
+     * <tt>tags</tt>, unless that is null.
+     */
+    public int drainTo(Collection<T> collection, int maxElements, Collection<Integer> tags) {
+
+        List<Entry<T>> entries = new ArrayList<Entry<T>>(Math.min(maxElements, queue.size()));
+        int elementsDrained = queue.drainTo(entries, maxElements);
+
+        // One update for the whole batch, rather than one per element
+        long drainedCost = 0;
+        for (Entry<T> entry: entries) {
+            drainedCost += entry.cost;
+            collection.add(entry.element);
+            if (tags != null) {
+                tags.add(entry.tag);
+            }
         }
+        cost.addAndGet(-drainedCost);
 
         return elementsDrained;
     }
 
+    /**
+     * Removes elements from the head until their cost adds up to at least <tt>cost</tt>, or the
+     * queue is empty. Elements are taken one at a time, so that no more is evicted than needed
+     * however their costs are spread.
+     *
+     * @param cost The cost to free
+     * @param counter Where to record the removed elements
+     * @return the number of elements removed
+     */
+    public int evict(long cost, EvictionCounter counter) {
+        int elementsEvicted = 0;
+        long evictedCost = 0;
+        while (evictedCost < cost) {
+            Entry<T> entry = queue.poll();
+            if (entry == null) break;
+            evictedCost += entry.cost;
+            elementsEvicted++;
+        }
+
+        if (elementsEvicted > 0) {
+            // One update for the whole run, rather than one per element
+            this.cost.addAndGet(-evictedCost);
+            counter.record(elementsEvicted, evictedCost);
+        }
+        return elementsEvicted;
+    }
+
     /**
      * Inserts the specified element into this queue if it is possible to do so immediately without
      * violating capacity restrictions, returning true upon success and false if no space is
@@ -101,8 +173,26 @@ public class CostBoundedConcurrentQueue<T> {
      *         false is no space is currently available.
      */
     public boolean offer(T e) {
-        long eCost = costAssigner.cost(e);
+        return offer(e, costAssigner.cost(e));
+    }
 
+    /**
+     * Same as {@link #offer(Object)}, for callers which already know the cost of the element.
+     *
+     * @param e Element to insert
+     * @param eCost Cost of the element
+     * @return true if element was successfully inserted;
+     *         false is no space is currently available.
+     */
+    public boolean offer(T e, long eCost) {
+        return offer(e, eCost, 0);
+    }
+
+    /**
+     * Same as {@link #offer(Object, long)}, keeping <tt>tag</tt> with the element. The tag costs
+     * nothing.
+     */
+    public boolean offer(T e, long eCost, int tag) {
         // Atomically check capacity and optimistically increase usage
         synchronized (this) {
             if (eCost + cost.get() > capacity) {
@@ -113,7 +203,7 @@ public class CostBoundedConcurrentQueue<T> {
         }
 
         // Underlying queue is unbounded, so this is guaranteed to succeed.
-        return queue.add(e);
+        return queue.add(new Entry<T>(e, eCost, tag));
     }
 
     /**
@@ -121,11 +211,12 @@ public class CostBoundedConcurrentQueue<T> {
      * @return The head of this queue
      */
     public T poll() {
-        T e = queue.poll();
-        if (e != null)
-            cost.addAndGet(-costAssigner.cost(e));
+        Entry<T> entry = queue.poll();
+        if (entry == null)
+            return null;
 
-        return e;
+        cost.addAndGet(-entry.cost);
+        return entry.element;
     }
 
 
@@ -0,0 +1,322 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Lock-free counterpart of {@link CostBoundedConcurrentQueue}, backed by a preallocated ring of
+ * slots instead of linked nodes. Capacity is reserved with a CAS on the cost counter, and slots
+ * are claimed with a CAS on the head/tail indices, so producers never block each other.
+ *
+ * Producers may also remove elements (that is how eviction works), so the ring is safe for
+ * multiple consumers as well as multiple producers. Besides the cost bound, an offer also fails
+ * when every slot is taken.
+ */
+public class CostBoundedRingQueue<T> {
+
+    private final AtomicReferenceArray<T> elements;
+    private final long[] costs;     // published and released together with elements
+    private final int[] tags;       // likewise
+    // sequences[i] == position  => slot i is free for the producer claiming position
+    // sequences[i] == position+1 => slot i holds the element published at position
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+
+    private final CostAssigner<T> costAssigner;
+    private final AtomicLong cost = new AtomicLong(0);
+    private volatile long capacity;
+
+
+    public CostBoundedRingQueue(long capacity, int slots, CostAssigner<T> costAssigner) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("Number of slots must be at least 1");
+        }
+
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+
+        this.elements = new AtomicReferenceArray<T>(size);
+        this.costs = new long[size];
+        this.tags = new int[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.costAssigner = costAssigner;
+        this.capacity = capacity;
+    }
+
+
+    /**
+     * Return the sum of the costs of all the elements contained in the queue.
+     * @return the cost
+     */
+    public long cost() {
+        return cost.get();
+    }
+
+    /**
+     * Change the maximum cost. Elements already in the queue are left alone.
+     * @param capacity the new capacity
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return the number of elements in the queue.
+     * @return the count
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) return 0;
+        return (int) Math.min(size, mask + 1);
+    }
+
+    /**
+     * Return the number of slots in the ring.
+     * @return the number of slots
+     */
+    public int slots() {
+        return mask + 1;
+    }
+
+
+    /**
+     * Removes all available elements from this queue and adds them to the given collection.
+     * Elements offered while the drain is in progress may be left for the next call.
+     *
+     * @param collection Destination collection
+     * @return the number of elements transferred
+     */
+    public int drainTo(Collection<T> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #drainTo(Collection)}, removing at most <tt>maxElements</tt> elements.
+     */
+    public int drainTo(Collection<T> collection, int maxElements) {
+        return drainTo(collection, maxElements, null);
+    }
+
+    /**
+     * Same as {@link #drainTo(Collection, int)}, adding the tag each element was offered with to
+     * <tt>tags</tt>, unless that is null.
+     */
+    public int drainTo(Collection<T> collection, int maxElements, Collection<Integer> tags) {
+        int limit = Math.min(size(), maxElements);
+        int elementsDrained = 0;
+        long drainedCost = 0;
+        while (elementsDrained < limit) {
+            long position = claimHead();
+            if (position < 0) break;
+
+            int index = (int) position & mask;
+            collection.add(elements.get(index));
+            if (tags != null) {
+                tags.add(this.tags[index]);
+            }
+            drainedCost += costs[index];
+            release(index, position);
+            elementsDrained++;
+        }
+
+        // One update for the whole batch, rather than one per element
+        if (drainedCost > 0)
+            cost.addAndGet(-drainedCost);
+
+        return elementsDrained;
+    }
+
+    /**
+     * Removes elements from the head until their cost adds up to at least <tt>cost</tt>, or the
+     * queue is empty. Each run of published elements is claimed with a single move of the head.
+     *
+     * @param cost The cost to free
+     * @param counter Where to record the removed elements
+     * @return the number of elements removed
+     */
+    public int evict(long cost, EvictionCounter counter) {
+        int elementsEvicted = 0;
+        long evictedCost = 0;
+        while (evictedCost < cost || elementsEvicted == 0) {
+            long position = head.get();
+
+            // Find how many published elements from the head cover the remaining cost
+            int run = 0;
+            long runCost = 0;
+            while (run <= mask && (evictedCost + runCost < cost || run == 0)) {
+                int index = (int) (position + run) & mask;
+                if (sequences.get(index) != position + run + 1) break;
+                runCost += costs[index];
+                run++;
+            }
+            if (run == 0) {
+                if (head.get() == position) break;  // empty
+                continue;
+            }
+            if (!head.compareAndSet(position, position + run)) continue;
+
+            // The run is ours now; the costs read above may be stale if we raced, so re-read them
+            for (int i = 0; i < run; i++) {
+                int index = (int) (position + i) & mask;
+                evictedCost += costs[index];
+                release(index, position + i);
+            }
+            elementsEvicted += run;
+        }
+
+        if (evictedCost > 0)
+            this.cost.addAndGet(-evictedCost);
+        counter.record(elementsEvicted, evictedCost);
+        return elementsEvicted;
+    }
+
+    /**
+     * Inserts the specified element into this queue if it is possible to do so immediately without
+     * violating capacity restrictions, returning true upon success and false if no space is
+     * currently available.
+     *
+     * @param e Element to insert
+     * @return true if element was successfully inserted;
+     *         false is no space is currently available.
+     */
+    public boolean offer(T e) {
+        return offer(e, costAssigner.cost(e));
+    }
+
+    /**
+     * Same as {@link #offer(Object)}, for callers which already know the cost of the element.
+     *
+     * @param e Element to insert
+     * @param eCost Cost of the element
+     * @return true if element was successfully inserted;
+     *         false is no space is currently available.
+     */
+    public boolean offer(T e, long eCost) {
+        return offer(e, eCost, 0);
+    }
+
+    /**
+     * Same as {@link #offer(Object, long)}, keeping <tt>tag</tt> with the element. The tag costs
+     * nothing.
+     */
+    public boolean offer(T e, long eCost, int tag) {
+        // Optimistically reserve the cost, then claim a slot. Give the cost back if the ring is full.
+        long current;
+        do {
+            current = cost.get();
+            if (current + eCost > capacity) {
+                return false;
+            }
+        } while (!cost.compareAndSet(current, current + eCost));
+
+        if (!enqueue(e, eCost, tag)) {
+            cost.addAndGet(-eCost);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if this queue is empty.
+     * @return The head of this queue
+     */
+    public T poll() {
+        long position = claimHead();
+        if (position < 0)
+            return null;
+
+        int index = (int) position & mask;
+        T e = elements.get(index);
+        long eCost = costs[index];
+        release(index, position);
+
+        cost.addAndGet(-eCost);
+        return e;
+    }
+
+
+    private boolean enqueue(T e, long eCost, int tag) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    costs[index] = eCost;
+                    tags[index] = tag;
+                    elements.lazySet(index, e);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // The slot still holds the element from the previous lap: the ring is full.
+                return false;
+            }
+            position = tail.get();
+        }
+    }
+
+    // Claims the oldest published slot, returning its position, or -1 if the ring is empty.
+    // The slot must be handed back with release() once it has been read.
+    private long claimHead() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                // Nothing has been published at this position yet: the ring is empty.
+                return -1;
+            }
+            position = head.get();
+        }
+    }
+
+    private void release(int index, long position) {
+        elements.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+    }
+}
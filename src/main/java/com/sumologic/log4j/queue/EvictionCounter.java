@@ -0,0 +1,64 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of the elements a buffer evicted or dropped, and of their cost. Buffers only
+ * bump the counters; whoever wants to report on evictions reads them off the hot path.
+ */
+public class EvictionCounter {
+
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong cost = new AtomicLong(0);
+
+    /**
+     * Record that <tt>count</tt> elements with a total cost of <tt>cost</tt> were evicted.
+     */
+    public void record(long count, long cost) {
+        if (count <= 0) return;
+        this.count.addAndGet(count);
+        this.cost.addAndGet(cost);
+    }
+
+    /**
+     * Return the number of elements evicted so far.
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Return the total cost of the elements evicted so far.
+     * @return the cost
+     */
+    public long getCost() {
+        return cost.get();
+    }
+}
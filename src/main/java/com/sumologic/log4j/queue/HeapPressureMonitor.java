@@ -0,0 +1,288 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks a buffer while the JVM is short on heap, and grows it back once the pressure is gone.
+ *
+ * A collection usage threshold is set on the tenured heap pool, so the JVM tells us when a GC
+ * leaves that pool above <tt>thresholdPercent</tt> of its maximum. The buffer then drops to a
+ * fraction of its normal capacity, evicting as needed. While shrunk, the pool is checked every
+ * second and the normal capacity comes back as soon as it is below the threshold.
+ *
+ * The threshold belongs to the whole JVM, so all the monitors share one listener: it sets the
+ * lowest threshold any of them asks for, and puts back the one it found once the last of them
+ * stops.
+ */
+public class HeapPressureMonitor {
+
+    public static final int DEFAULT_THRESHOLD_PERCENT = 85;
+    public static final int DEFAULT_SHRINK_PERCENT = 25;
+
+    private static final long RECHECK_INTERVAL_MS = 1000;
+
+    private final BufferWithEviction<?> buffer;
+    private final long normalCapacity;
+    private final long reducedCapacity;
+    private final int thresholdPercent;
+
+    private boolean started = false;
+    private ScheduledFuture<?> recheck;
+    private boolean underPressure = false;
+
+    public HeapPressureMonitor(BufferWithEviction<?> buffer, int thresholdPercent) {
+        this(buffer, thresholdPercent, DEFAULT_SHRINK_PERCENT);
+    }
+
+    public HeapPressureMonitor(BufferWithEviction<?> buffer, int thresholdPercent, int shrinkPercent) {
+        if (thresholdPercent <= 0 || thresholdPercent >= 100) {
+            throw new IllegalArgumentException("Threshold must be between 1 and 99 percent");
+        }
+        if (shrinkPercent <= 0 || shrinkPercent > 100) {
+            throw new IllegalArgumentException("Shrink percentage must be between 1 and 100");
+        }
+        this.buffer = buffer;
+        this.normalCapacity = buffer.getCapacity();
+        this.reducedCapacity = Math.max(1, normalCapacity * shrinkPercent / 100);
+        this.thresholdPercent = thresholdPercent;
+    }
+
+    /**
+     * Start listening for heap pressure.
+     * @return false if the JVM has no heap pool that reports collection usage.
+     */
+    public synchronized boolean start() {
+        if (started) return true;
+        started = PoolListener.register(this);
+        return started;
+    }
+
+    public synchronized void stop() {
+        if (!started) return;
+        started = false;
+        PoolListener.unregister(this);
+        if (recheck != null) {
+            recheck.cancel(false);
+            recheck = null;
+        }
+        if (underPressure) {
+            buffer.setCapacity(normalCapacity);
+            underPressure = false;
+        }
+    }
+
+    public synchronized boolean isUnderPressure() {
+        return underPressure;
+    }
+
+    int getThresholdPercent() {
+        return thresholdPercent;
+    }
+
+    /**
+     * Shrink the buffer. Called when a GC left the tenured pool above the threshold.
+     */
+    protected synchronized void onPressure() {
+        if (underPressure) return;
+        underPressure = true;
+        StatusLogger.getLogger().warn("Heap usage above " + thresholdPercent + "%, shrinking buffer to " +
+                reducedCapacity + " bytes");
+        buffer.setCapacity(reducedCapacity);
+
+        if (!started) return;
+        recheck = PoolListener.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!PoolListener.isAbove(thresholdPercent)) {
+                    onRelief();
+                }
+            }
+        }, RECHECK_INTERVAL_MS);
+    }
+
+    /**
+     * Restore the normal capacity.
+     */
+    protected synchronized void onRelief() {
+        if (!underPressure) return;
+        underPressure = false;
+        StatusLogger.getLogger().info("Heap usage back below " + thresholdPercent + "%, restoring buffer to " +
+                normalCapacity + " bytes");
+        buffer.setCapacity(normalCapacity);
+        if (recheck != null) {
+            recheck.cancel(false);
+            recheck = null;
+        }
+    }
+
+    static MemoryPoolMXBean findTenuredPool() {
+        MemoryPoolMXBean candidate = null;
+        for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (bean.getType() == MemoryType.HEAP && bean.isCollectionUsageThresholdSupported() &&
+                    bean.isUsageThresholdSupported()) {
+                // Eden and survivor spaces don't support usage thresholds; what is left is the old generation
+                candidate = bean;
+            }
+        }
+        return candidate;
+    }
+
+
+    /**
+     * The one listener for the JVM, registered while at least one monitor is started. Monitors
+     * only take its lock to register, unregister and schedule; it never holds it while calling
+     * into a monitor.
+     */
+    private static class PoolListener implements NotificationListener {
+
+        private static PoolListener instance;
+
+        private final MemoryPoolMXBean pool;
+        private final long previousThreshold;
+        private final List<HeapPressureMonitor> monitors = new ArrayList<HeapPressureMonitor>();
+        private final ScheduledExecutorService executor;
+
+        private PoolListener(MemoryPoolMXBean pool) {
+            this.pool = pool;
+            this.previousThreshold = pool.getCollectionUsageThreshold();
+            this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SumoHeapPressureMonitor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        static synchronized boolean register(HeapPressureMonitor monitor) {
+            if (instance == null) {
+                MemoryPoolMXBean pool = findTenuredPool();
+                if (pool == null) {
+                    StatusLogger.getLogger().warn("No heap pool supports usage thresholds, adaptive capacity disabled");
+                    return false;
+                }
+                if (pool.getUsage().getMax() <= 0) {
+                    StatusLogger.getLogger().warn("Heap pool " + pool.getName() + " has no maximum size, adaptive capacity disabled");
+                    return false;
+                }
+                instance = new PoolListener(pool);
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(instance, null, null);
+            }
+            instance.monitors.add(monitor);
+            instance.updateThreshold();
+            return true;
+        }
+
+        static synchronized void unregister(HeapPressureMonitor monitor) {
+            if (instance == null || !instance.monitors.remove(monitor)) return;
+            if (!instance.monitors.isEmpty()) {
+                instance.updateThreshold();
+                return;
+            }
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(instance);
+            } catch (ListenerNotFoundException e) {
+                // Already gone
+            }
+            instance.pool.setCollectionUsageThreshold(instance.previousThreshold);
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+
+        static synchronized ScheduledFuture<?> schedule(Runnable task, long intervalMs) {
+            if (instance == null) return null;
+            return instance.executor.scheduleWithFixedDelay(task, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        // Whether the last GC left the pool above thresholdPercent of its maximum
+        static boolean isAbove(int thresholdPercent) {
+            PoolListener listener;
+            synchronized (PoolListener.class) {
+                listener = instance;
+            }
+            if (listener == null) return false;
+            MemoryUsage usage = listener.pool.getCollectionUsage();
+            return usage != null && usage.getUsed() >= thresholdBytes(usage, thresholdPercent);
+        }
+
+        private static long thresholdBytes(MemoryUsage usage, int thresholdPercent) {
+            return usage.getMax() * thresholdPercent / 100;
+        }
+
+        private void updateThreshold() {
+            int lowest = 100;
+            for (HeapPressureMonitor monitor : monitors) {
+                lowest = Math.min(lowest, monitor.getThresholdPercent());
+            }
+            pool.setCollectionUsageThreshold(thresholdBytes(pool.getUsage(), lowest));
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                return;
+            }
+            // Other code may set thresholds on other pools
+            MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+            if (!pool.getName().equals(info.getPoolName())) {
+                return;
+            }
+
+            List<HeapPressureMonitor> current;
+            synchronized (PoolListener.class) {
+                current = new ArrayList<HeapPressureMonitor>(monitors);
+            }
+            MemoryUsage usage = info.getUsage();
+            for (HeapPressureMonitor monitor : current) {
+                if (usage.getUsed() >= thresholdBytes(usage, monitor.getThresholdPercent())) {
+                    monitor.onPressure();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.util.Collection;
+
+import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer for many concurrent producers and one consumer which takes members of the queue in
+ * batches. Unlike {@link BufferWithFifoEviction}, producers never take a lock: inserting and
+ * evicting are both done through {@link CostBoundedRingQueue}.
+ */
+public class LockFreeBufferWithFifoEviction<T> extends BufferWithEviction<T> {
+
+    public static final int DEFAULT_SLOTS = 1 << 16;
+
+    private CostBoundedRingQueue<T> queue;
+    private CostAssigner<T> costAssigner;
+
+    public LockFreeBufferWithFifoEviction(long capacity, CostAssigner<T> costAssigner) {
+        this(capacity, DEFAULT_SLOTS, costAssigner);
+    }
+
+    public LockFreeBufferWithFifoEviction(long capacity, int slots, CostAssigner<T> costAssigner) {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.queue = new CostBoundedRingQueue<T>(capacity, slots, costAssigner);
+        this.costAssigner = costAssigner;
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        queue.setCapacity(capacity);
+        super.setCapacity(capacity);
+    }
+
+    @Override
+    protected T evict() {
+        return queue.poll();
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>. Evicts at least one element,
+     * since the insertion may also have failed because the ring ran out of slots.
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    protected boolean evict(long cost) {
+
+        if (cost > getCapacity()) return false;
+
+        queue.evict(queue.cost() - (getCapacity() - cost), getEvictions());
+
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public long cost() {
+        return queue.cost();
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection) {
+        return queue.drainTo(collection);
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements) {
+        return queue.drainTo(collection, maxElements);
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements, Collection<Integer> tags) {
+        return queue.drainTo(collection, maxElements, tags);
+    }
+
+    @Override
+    public boolean add(T element) {
+        return add(element, Integer.MAX_VALUE, 0);
+    }
+
+    @Override
+    public boolean add(T element, int level, int tag) {
+        long eCost = costAssigner.cost(element);
+        // Retry until we win a slot; concurrent producers may grab the room we just evicted.
+        while (!queue.offer(element, eCost, tag)) {
+            if (!evict(eCost)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
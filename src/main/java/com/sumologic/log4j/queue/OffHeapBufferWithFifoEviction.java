@@ -0,0 +1,260 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Buffer of encoded messages kept outside the Java heap, so that a large backlog does not end up
+ * in the old generation. Messages are written back to back, each behind a 4 byte length header,
+ * into a circular arena made of direct {@link ByteBuffer} segments. Segments are allocated the
+ * first time they are written to.
+ *
+ * Eviction only moves the read pointer past the oldest messages. The cost of a message is its
+ * length plus the header. A message added with a tag has the tag right after the header, which
+ * makes it 4 bytes more expensive. The capacity can be lowered later on, but never raised above the size
+ * of the arena the buffer was created with.
+ */
+public class OffHeapBufferWithFifoEviction extends BufferWithEviction<byte[]> {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    private static final int HEADER_SIZE = 4;
+    private static final int TAG_SIZE = 4;
+    private static final int TAGGED = 1 << 30;      // Set in the length header when a tag follows
+
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+    private final long arenaSize;
+    private final byte[] header = new byte[HEADER_SIZE];
+
+    // Monotonic positions; the physical offset is position % arenaSize
+    private long head = 0;
+    private long tail = 0;
+    private int count = 0;
+
+    public OffHeapBufferWithFifoEviction(long capacity) {
+        this(capacity, (int) Math.min(capacity, DEFAULT_SEGMENT_SIZE));
+    }
+
+    public OffHeapBufferWithFifoEviction(long capacity, int segmentSize) {
+        super(capacity);
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be at least 1");
+        }
+
+        long numSegments = (capacity + segmentSize - 1) / segmentSize;
+        if (numSegments > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size too small for capacity " + capacity);
+        }
+
+        this.segments = new ByteBuffer[(int) numSegments];
+        this.segmentSize = segmentSize;
+        this.arenaSize = capacity;
+    }
+
+    @Override
+    synchronized public void setCapacity(long capacity) {
+        super.setCapacity(capacity);
+    }
+
+    @Override
+    synchronized protected byte[] evict() {
+        return take(null);
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>, by skipping over the oldest
+     * messages without reading them.
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    synchronized protected boolean evict(long cost) {
+
+        int numEvicted = 0;
+
+
+        if (cost > limit()) return false;
+
+        long start = head;
+        while (count > 0 && (tail - head) + cost > limit()) {
+            int header = readInt(head);
+            head += headerSize(header) + (header & ~TAGGED);
+            count--;
+            numEvicted++;
+        }
+
+        getEvictions().record(numEvicted, head - start);
+
+        return true;
+    }
+
+    @Override
+    synchronized public int size() {
+        return count;
+    }
+
+    @Override
+    synchronized public long cost() {
+        return tail - head;
+    }
+
+    @Override
+    synchronized public boolean hasRoomFor(long cost) {
+        return (tail - head) + HEADER_SIZE + cost <= limit();
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<byte[]> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<byte[]> collection, int maxElements) {
+        return drainTo(collection, maxElements, null);
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<byte[]> collection, int maxElements, Collection<Integer> tags) {
+        int elementsDrained = 0;
+        byte[] e;
+        while (elementsDrained < maxElements && (e = take(tags)) != null) {
+            collection.add(e);
+            elementsDrained++;
+        }
+
+        return elementsDrained;
+    }
+
+    @Override
+    synchronized public boolean add(byte[] element) {
+        return add(element, Integer.MAX_VALUE, 0);
+    }
+
+    @Override
+    synchronized public boolean add(byte[] element, int level, int tag) {
+        if (element.length >= TAGGED) return false;
+
+        int headerSize = tag != 0 ? HEADER_SIZE + TAG_SIZE : HEADER_SIZE;
+        long eCost = headerSize + element.length;
+        if ((tail - head) + eCost > limit()) {
+            if (!evict(eCost)) return false;
+        }
+
+        writeInt(tail, tag != 0 ? element.length | TAGGED : element.length);
+        if (tag != 0) {
+            writeInt(tail + HEADER_SIZE, tag);
+        }
+        write(tail + headerSize, element);
+        tail += eCost;
+        count++;
+
+        return true;
+    }
+
+
+    private long limit() {
+        return Math.min(getCapacity(), arenaSize);
+    }
+
+    // Removes the oldest message, adding its tag to tags unless that is null
+    private byte[] take(Collection<Integer> tags) {
+        if (count == 0) return null;
+
+        int header = readInt(head);
+        if (tags != null) {
+            tags.add((header & TAGGED) != 0 ? readInt(head + HEADER_SIZE) : 0);
+        }
+        byte[] e = new byte[header & ~TAGGED];
+        read(head + headerSize(header), e);
+        head += headerSize(header) + e.length;
+        count--;
+        return e;
+    }
+
+    private static int headerSize(int header) {
+        return (header & TAGGED) != 0 ? HEADER_SIZE + TAG_SIZE : HEADER_SIZE;
+    }
+
+    private void writeInt(long position, int value) {
+        header[0] = (byte) (value >>> 24);
+        header[1] = (byte) (value >>> 16);
+        header[2] = (byte) (value >>> 8);
+        header[3] = (byte) value;
+        write(position, header);
+    }
+
+    private int readInt(long position) {
+        read(position, header);
+        return ((header[0] & 0xff) << 24) |
+               ((header[1] & 0xff) << 16) |
+               ((header[2] & 0xff) << 8) |
+               (header[3] & 0xff);
+    }
+
+    private void write(long position, byte[] src) {
+        int done = 0;
+        while (done < src.length) {
+            ByteBuffer segment = segmentAt(position + done, true);
+            int chunk = Math.min(src.length - done, segment.remaining());
+            segment.put(src, done, chunk);
+            done += chunk;
+        }
+    }
+
+    private void read(long position, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            ByteBuffer segment = segmentAt(position + done, false);
+            int chunk = Math.min(dst.length - done, segment.remaining());
+            segment.get(dst, done, chunk);
+            done += chunk;
+        }
+    }
+
+    // Returns the segment holding the given position, positioned at it.
+    private ByteBuffer segmentAt(long position, boolean allocate) {
+        long offset = position % arenaSize;
+        int index = (int) (offset / segmentSize);
+        ByteBuffer segment = segments[index];
+        if (segment == null) {
+            if (!allocate) {
+                throw new IllegalStateException("Reading from unallocated segment " + index);
+            }
+            int size = (int) Math.min(segmentSize, arenaSize - (long) index * segmentSize);
+            segment = ByteBuffer.allocateDirect(size);
+            segments[index] = segment;
+        }
+        segment.clear();
+        segment.position((int) (offset - (long) index * segmentSize));
+        return segment;
+    }
+}
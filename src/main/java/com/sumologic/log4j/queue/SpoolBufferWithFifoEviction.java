@@ -0,0 +1,597 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Buffer of encoded messages spooled to memory-mapped segment files, so that messages which have
+ * not been delivered yet survive a restart of the JVM.
+ *
+ * Messages are appended, each behind a 4 byte length header, to the mapped tail segment; a message
+ * added with a tag has the tag right after the header, which makes it 4 bytes more expensive. Draining
+ * only moves an in-memory read pointer; the position reached is persisted once the consumer calls
+ * {@link #commit()}, and segments which lie entirely before that position are deleted. When the
+ * buffer is opened, everything after the last committed position is replayed. Segments are forced
+ * to disk when they fill up and the committed position whenever it is committed, never on add.
+ * Drains can also be committed one at a time, up to a position from {@link #getDrainedPosition()},
+ * and {@link #rewind()} hands out everything not committed yet again.
+ *
+ * The capacity bounds the bytes between the committed position and the tail, not counting
+ * evicted messages. Eviction only ever gives up on the oldest unread messages, never on those
+ * drained but not committed yet: it marks them evicted by negating their length header, so a
+ * rewind or a replay skips them, and their bytes are reclaimed once the messages in flight before
+ * them are committed. A message which only fits by evicting some of those in flight is refused.
+ * {@link #close()} unmaps the segments; the buffer can't be used after that, but opening the
+ * directory again replays what was not committed.
+ */
+public class SpoolBufferWithFifoEviction extends BufferWithEviction<byte[]> {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+    private static final int HEADER_SIZE = 4;
+    private static final int TAG_SIZE = 4;
+    private static final int TAGGED = 1 << 30;      // Set in the length header when a tag follows
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String OFFSET_FILE = "committed.offset";
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition = 0;
+        Segment next = null;
+
+        Segment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    // A point between two messages, as handed out by getDrainedPosition()
+    private static class Position {
+        final Segment segment;
+        final int position;
+
+        Position(Segment segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final MappedByteBuffer offset;
+
+    // Oldest segment (holding the committed position) and the one being appended to
+    private Segment head = null;
+    private Segment tail = null;
+    private long nextSequence = 0;
+
+    private int commitPosition = 0;          // within head
+    private Segment readSegment = null;      // next message handed out by drainTo
+    private int readPosition = 0;
+    private Segment drainedSegment = null;   // what commit() will move the committed position to
+    private int drainedPosition = 0;
+
+    private int count = 0;          // unread messages
+    private long unreadBytes = 0;   // bytes from the read position to the tail
+    private long usedBytes = 0;     // bytes from the committed position to the tail
+    private long evictedBytes = 0;  // bytes of evicted messages within usedBytes
+    private boolean closed = false;
+
+    public SpoolBufferWithFifoEviction(long capacity, File directory) throws IOException {
+        this(capacity, directory, (int) Math.min(capacity, DEFAULT_SEGMENT_SIZE));
+    }
+
+    public SpoolBufferWithFifoEviction(long capacity, File directory, int segmentSize) throws IOException {
+        super(capacity);
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size must be larger than " + HEADER_SIZE);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.offset = map(new File(directory, OFFSET_FILE), 12);
+
+        replay();
+    }
+
+    @Override
+    synchronized public void setCapacity(long capacity) {
+        super.setCapacity(capacity);
+    }
+
+    @Override
+    synchronized protected byte[] evict() {
+        if (closed || !advanceToUnread()) return null;
+
+        byte[] e = read(readSegment, readPosition);
+        evictUnread(recordSize(readSegment.buffer, readPosition));
+        return e;
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>.
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    synchronized protected boolean evict(long cost) {
+
+        int numEvicted = 0;
+        long evictedCost = 0;
+
+        if (closed) return false;
+
+        // Messages in flight stay until they are committed, so only unread ones can make room
+        // Unless the capacity shrank, evict nothing if that would not make enough room anyway
+        long excess = usedBytes - evictedBytes + cost - getCapacity();
+        if (cost > 0 && excess > unreadBytes) return false;
+
+        while (excess > 0 && advanceToUnread()) {
+            int size = recordSize(readSegment.buffer, readPosition);
+            evictUnread(size);
+            excess -= size;
+            evictedCost += size;
+            numEvicted++;
+        }
+
+        getEvictions().record(numEvicted, evictedCost);
+
+        return excess <= 0;
+    }
+
+    @Override
+    synchronized public int size() {
+        return count;
+    }
+
+    @Override
+    synchronized public long cost() {
+        return unreadBytes;
+    }
+
+    @Override
+    synchronized public boolean hasRoomFor(long cost) {
+        return usedBytes - evictedBytes + HEADER_SIZE + cost <= getCapacity();
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<byte[]> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<byte[]> collection, int maxElements) {
+        return drainTo(collection, maxElements, null);
+    }
+
+    @Override
+    synchronized public int drainTo(Collection<byte[]> collection, int maxElements, Collection<Integer> tags) {
+        int elementsDrained = 0;
+        if (closed) return 0;
+
+        while (elementsDrained < maxElements && advanceToUnread()) {
+            collection.add(read(readSegment, readPosition));
+            if (tags != null) {
+                tags.add(readTag(readSegment, readPosition));
+            }
+            skipUnread(recordSize(readSegment.buffer, readPosition));
+            elementsDrained++;
+        }
+
+        drainedSegment = readSegment;
+        drainedPosition = readPosition;
+        return elementsDrained;
+    }
+
+    /**
+     * Persist the position reached by the last drain, so those messages are not replayed.
+     */
+    @Override
+    synchronized public void commit() {
+        if (!closed && drainedSegment != null) {
+            moveCommittedPosition(drainedSegment, drainedPosition, true);
+        }
+    }
+
+    @Override
+    synchronized public Object getDrainedPosition() {
+        return drainedSegment != null ? new Position(drainedSegment, drainedPosition) : null;
+    }
+
+    /**
+     * Persist the given position, so the messages before it are not replayed.
+     */
+    @Override
+    synchronized public void commit(Object position) {
+        Position end = (Position) position;
+        if (!closed && end != null) {
+            moveCommittedPosition(end.segment, end.position, true);
+        }
+    }
+
+    /**
+     * Move the read position back to the committed position, so everything drained since is
+     * handed out again.
+     */
+    @Override
+    synchronized public boolean rewind() {
+        if (closed) return false;
+        if (head == null) return true;
+
+        readSegment = head;
+        readPosition = commitPosition;
+        drainedSegment = head;
+        drainedPosition = commitPosition;
+        count = 0;
+        for (Segment segment = head; segment != null; segment = segment.next) {
+            int start = segment == head ? commitPosition : 0;
+            for (int position = start; position < segment.writePosition; ) {
+                if (segment.buffer.getInt(position) > 0) count++;
+                position += recordSize(segment.buffer, position);
+            }
+        }
+        unreadBytes = usedBytes - evictedBytes;
+        return true;
+    }
+
+    /**
+     * Force everything added to disk and unmap the segments. Whatever was not committed is
+     * replayed when the directory is opened again.
+     */
+    @Override
+    synchronized public void close() {
+        if (closed) return;
+        closed = true;
+
+        if (tail != null) {
+            tail.buffer.force();
+        }
+        offset.force();
+        for (Segment segment = head; segment != null; segment = segment.next) {
+            unmap(segment.buffer);
+        }
+        unmap(offset);
+        head = tail = readSegment = drainedSegment = null;
+    }
+
+    @Override
+    synchronized public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    synchronized public boolean add(byte[] element) {
+        return add(element, Integer.MAX_VALUE, 0);
+    }
+
+    @Override
+    synchronized public boolean add(byte[] element, int level, int tag) {
+        // Nothing to send, and a zero length header marks the end of a segment
+        if (element.length == 0) return true;
+        if (closed || element.length >= TAGGED) return false;
+
+        int headerSize = tag != 0 ? HEADER_SIZE + TAG_SIZE : HEADER_SIZE;
+        int eCost = headerSize + element.length;
+        if (eCost > segmentSize || eCost > getCapacity()) return false;
+        if (usedBytes - evictedBytes + eCost > getCapacity()) {
+            if (!evict(eCost)) return false;
+        }
+
+        if (tail == null || tail.writePosition + eCost > tail.buffer.capacity()) {
+            try {
+                roll();
+            } catch (IOException e) {
+                StatusLogger.getLogger().error("Unable to create spool segment in " + directory, e);
+                return false;
+            }
+        }
+
+        // Payload first, so a header is never visible in front of a partial payload
+        int position = tail.writePosition;
+        if (tag != 0) {
+            tail.buffer.putInt(position + HEADER_SIZE, tag);
+        }
+        tail.buffer.position(position + headerSize);
+        tail.buffer.put(element);
+        tail.buffer.putInt(position, tag != 0 ? element.length | TAGGED : element.length);
+        tail.writePosition += eCost;
+
+        count++;
+        unreadBytes += eCost;
+        usedBytes += eCost;
+        return true;
+    }
+
+
+    private void replay() throws IOException {
+        long committedSequence = offset.getLong(0);
+        int committedPosition = offset.getInt(8);
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list spool directory " + directory);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = sequenceOf(a) - sequenceOf(b);
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            long sequence = sequenceOf(file);
+            if (sequence < committedSequence) {
+                delete(file);
+                continue;
+            }
+
+            Segment segment = new Segment(sequence, file,
+                    map(file, (int) Math.max(file.length(), segmentSize)));
+            segment.writePosition = scan(segment.buffer);
+            append(segment);
+
+            int start = 0;
+            if (segment == head && sequence == committedSequence) {
+                start = Math.min(committedPosition, segment.writePosition);
+                commitPosition = start;
+            }
+            for (int position = start; position < segment.writePosition; ) {
+                boolean evicted = segment.buffer.getInt(position) < 0;
+                int eCost = recordSize(segment.buffer, position);
+                position += eCost;
+                usedBytes += eCost;
+                if (!evicted) {
+                    count++;
+                    unreadBytes += eCost;
+                } else {
+                    evictedBytes += eCost;
+                }
+            }
+        }
+
+        readSegment = head;
+        readPosition = commitPosition;
+        drainedSegment = head;
+        drainedPosition = commitPosition;
+
+        if (count > 0) {
+            StatusLogger.getLogger().info("Replaying " + count + " messages from spool " + directory);
+        }
+    }
+
+    // Returns the end of the valid records in a segment; evicted ones have a negated length
+    private int scan(MappedByteBuffer buffer) {
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int header = Math.abs(buffer.getInt(position));
+            int length = header & ~TAGGED;
+            if (length == 0 || position + headerSize(header) + length > buffer.capacity()) break;
+            position += headerSize(header) + length;
+        }
+        return position;
+    }
+
+    private void roll() throws IOException {
+        if (tail != null) {
+            tail.buffer.force();
+        }
+
+        long sequence = nextSequence;
+        File file = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        Segment segment = new Segment(sequence, file, map(file, segmentSize));
+        append(segment);
+
+        if (readSegment == null) {
+            readSegment = segment;
+            drainedSegment = segment;
+        }
+    }
+
+    private void append(Segment segment) {
+        if (tail == null) {
+            head = segment;
+        } else {
+            tail.next = segment;
+        }
+        tail = segment;
+        nextSequence = segment.sequence + 1;
+    }
+
+    private boolean advanceToUnread() {
+        if (readSegment == null) return false;
+
+        while (true) {
+            if (readPosition >= readSegment.writePosition) {
+                if (readSegment.next == null) return false;
+                readSegment = readSegment.next;
+                readPosition = 0;
+                continue;
+            }
+            if (readSegment.buffer.getInt(readPosition) > 0) return true;
+            readPosition += recordSize(readSegment.buffer, readPosition);
+        }
+    }
+
+    private void skipUnread(int size) {
+        readPosition += size;
+        count--;
+        unreadBytes -= size;
+    }
+
+    // Mark the next unread message evicted, so that neither a rewind nor a replay hands it out
+    private void evictUnread(int size) {
+        readSegment.buffer.putInt(readPosition, -readSegment.buffer.getInt(readPosition));
+        evictedBytes += size;
+        skipUnread(size);
+    }
+
+    // Bytes of evicted messages in the segment between the two positions
+    private static long evictedBetween(Segment segment, int from, int to) {
+        long evicted = 0;
+        for (int position = from; position < to; ) {
+            int size = recordSize(segment.buffer, position);
+            if (segment.buffer.getInt(position) < 0) evicted += size;
+            position += size;
+        }
+        return evicted;
+    }
+
+    private static byte[] read(Segment segment, int position) {
+        int header = segment.buffer.getInt(position);
+        byte[] e = new byte[header & ~TAGGED];
+        segment.buffer.position(position + headerSize(header));
+        segment.buffer.get(e);
+        return e;
+    }
+
+    private static int readTag(Segment segment, int position) {
+        int header = segment.buffer.getInt(position);
+        return (header & TAGGED) != 0 ? segment.buffer.getInt(position + HEADER_SIZE) : 0;
+    }
+
+    // Bytes taken by the record at the given position, evicted or not, header and tag included
+    private static int recordSize(MappedByteBuffer buffer, int position) {
+        int header = Math.abs(buffer.getInt(position));
+        return headerSize(header) + (header & ~TAGGED);
+    }
+
+    private static int headerSize(int header) {
+        return (header & TAGGED) != 0 ? HEADER_SIZE + TAG_SIZE : HEADER_SIZE;
+    }
+
+    private void moveCommittedPosition(Segment segment, int position, boolean force) {
+        // Never move backwards, e.g. when a rewind committed the same batch twice
+        if (segment.sequence < head.sequence ||
+                (segment.sequence == head.sequence && position <= commitPosition)) {
+            return;
+        }
+
+        while (head != segment) {
+            if (evictedBytes > 0) {
+                evictedBytes -= evictedBetween(head, commitPosition, head.writePosition);
+            }
+            usedBytes -= head.writePosition - commitPosition;
+            unmap(head.buffer);
+            delete(head.file);
+            head = head.next;
+            commitPosition = 0;
+        }
+        if (evictedBytes > 0) {
+            evictedBytes -= evictedBetween(head, commitPosition, position);
+        }
+        usedBytes -= position - commitPosition;
+        commitPosition = position;
+
+        offset.putLong(0, head.sequence);
+        offset.putInt(8, commitPosition);
+        if (force) {
+            offset.force();
+        }
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid once the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Release a mapping right away rather than whenever the buffer is collected. There is no
+    // public API for this: Java 9 and later offer Unsafe.invokeCleaner, Java 7 and 8 a cleaner
+    // on the buffer itself. If neither is reachable the mapping is left to the collector.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // Before Java 9
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            StatusLogger.getLogger().debug("Unable to unmap spool segment, leaving it to the collector", e);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            StatusLogger.getLogger().warn("Unable to delete spool segment " + file);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import java.util.Collection;
+
+import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
+
+/**
+ * Buffer split into independent stripes, each a {@link CostBoundedRingQueue} with its own cost
+ * accounting. Producer threads are hashed onto a stripe, so threads on different cores rarely
+ * touch the same counters. The consumer drains every stripe into a single batch.
+ *
+ * The capacity is enforced approximately: a stripe may fill past its even share of the capacity,
+ * and only then does a producer sum the cost of all stripes and evict from the largest ones.
+ * Messages keep their order within a stripe (and therefore within a thread), but not across
+ * stripes.
+ */
+public class StripedBufferWithFifoEviction<T> extends BufferWithEviction<T> {
+
+    private static final int MIN_SLOTS_PER_STRIPE = 1024;
+
+    private CostBoundedRingQueue<T>[] stripes;
+    private int mask;
+    private CostAssigner<T> costAssigner;
+    private int nextStripe = 0;       // Only used by the draining thread
+
+    public StripedBufferWithFifoEviction(long capacity, CostAssigner<T> costAssigner) {
+        this(capacity, Runtime.getRuntime().availableProcessors(), costAssigner);
+    }
+
+    public StripedBufferWithFifoEviction(long capacity, int numStripes, CostAssigner<T> costAssigner) {
+        super(capacity);
+
+        if (costAssigner == null) {
+            throw new IllegalArgumentException("CostAssigner cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (numStripes <= 0) {
+            throw new IllegalArgumentException("Number of stripes must be at least 1");
+        }
+
+        int size = Integer.highestOneBit(numStripes);
+        if (size < numStripes) {
+            size <<= 1;
+        }
+
+        int slots = Math.max(MIN_SLOTS_PER_STRIPE, LockFreeBufferWithFifoEviction.DEFAULT_SLOTS / size);
+        this.stripes = newStripes(size);
+        for (int i = 0; i < size; i++) {
+            // Every stripe may use the whole capacity; the global bound is checked in add()
+            stripes[i] = new CostBoundedRingQueue<T>(capacity, slots, costAssigner);
+        }
+        this.mask = size - 1;
+        this.costAssigner = costAssigner;
+    }
+
+    @Override
+    public void setCapacity(long capacity) {
+        for (CostBoundedRingQueue<T> stripe : stripes) {
+            stripe.setCapacity(capacity);
+        }
+        super.setCapacity(capacity);
+    }
+
+    @Override
+    protected T evict() {
+        return largestStripe().poll();
+    }
+
+    /**
+     * Make room for inserting an element with cost <tt>cost</tt>, evicting from the stripes
+     * holding the most data first.
+     * @param cost the desired cost to evict
+     * @return true if eviction was successful, false otherwise.
+     */
+    protected boolean evict(long cost) {
+
+        if (cost > getCapacity()) return false;
+
+        long excess = cost() - (getCapacity() - cost);
+        while (excess > 0) {
+            if (largestStripe().evict(excess, getEvictions()) == 0) break;
+            excess = cost() - (getCapacity() - cost);
+        }
+
+        return true;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (CostBoundedRingQueue<T> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long cost() {
+        long cost = 0;
+        for (CostBoundedRingQueue<T> stripe : stripes) {
+            cost += stripe.cost();
+        }
+        return cost;
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection) {
+        int elementsDrained = 0;
+        for (CostBoundedRingQueue<T> stripe : stripes) {
+            elementsDrained += stripe.drainTo(collection);
+        }
+        return elementsDrained;
+    }
+
+    /**
+     * Drains the stripes in turn, starting after the one a limited drain last stopped at, so that
+     * none is left behind for long.
+     */
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements) {
+        return drainTo(collection, maxElements, null);
+    }
+
+    @Override
+    public int drainTo(Collection<T> collection, int maxElements, Collection<Integer> tags) {
+        int elementsDrained = 0;
+        for (int i = 0; i < stripes.length && elementsDrained < maxElements; i++) {
+            int index = (nextStripe + i) & mask;
+            elementsDrained += stripes[index].drainTo(collection, maxElements - elementsDrained, tags);
+            if (elementsDrained >= maxElements) {
+                nextStripe = index + 1;
+            }
+        }
+        return elementsDrained;
+    }
+
+    @Override
+    public boolean add(T element) {
+        return add(element, Integer.MAX_VALUE, 0);
+    }
+
+    @Override
+    public boolean add(T element, int level, int tag) {
+        long eCost = costAssigner.cost(element);
+        if (eCost > getCapacity()) return false;
+
+        CostBoundedRingQueue<T> stripe = stripeForCurrentThread();
+
+        // Only look at the other stripes once this one has outgrown its share of the budget.
+        if (stripe.cost() + eCost > getCapacity() / stripes.length &&
+                cost() + eCost > getCapacity()) {
+            evict(eCost);
+        }
+
+        // The stripe may still be out of slots, in which case its own oldest elements go.
+        while (!stripe.offer(element, eCost, tag)) {
+            if (stripe.evict(0, getEvictions()) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    // Java can't create an array of CostBoundedRingQueue<T>. The array never leaves this class and
+    // only ever holds queues of T, so the cast can't fail
+    @SuppressWarnings("unchecked")
+    private static <T> CostBoundedRingQueue<T>[] newStripes(int size) {
+        return (CostBoundedRingQueue<T>[]) new CostBoundedRingQueue<?>[size];
+    }
+
+    private CostBoundedRingQueue<T> stripeForCurrentThread() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private CostBoundedRingQueue<T> largestStripe() {
+        CostBoundedRingQueue<T> largest = stripes[0];
+        for (int i = 1; i < stripes.length; i++) {
+            if (stripes[i].cost() > largest.cost()) {
+                largest = stripes[i];
+            }
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncHandoffTest {
+
+    private final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+
+    private AsyncHandoff.EventHandler recorder = new AsyncHandoff.EventHandler() {
+        @Override
+        public void onEvent(LogEvent event) {
+            handled.add(event.getMessage().getFormattedMessage());
+        }
+    };
+
+    private static LogEvent event(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    @Test
+    public void testOrderWithinThread() {
+        AsyncHandoff handoff = new AsyncHandoff(4, new AsyncHandoff.SleepingWaitStrategy(), recorder);
+        handoff.start("test");
+        for (int i = 0; i < 100; i++) {
+            handoff.publish(event("message " + i));
+        }
+        handoff.stop();
+
+        assertEquals(100, handled.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i, handled.get(i));
+        }
+    }
+
+    @Test
+    public void testConcurrentProducersWithBlockingWait() throws Exception {
+        final int numThreads = 4;
+        final int perThread = 2000;
+        final AsyncHandoff handoff = new AsyncHandoff(8, new AsyncHandoff.BlockingWaitStrategy(), recorder);
+        handoff.start("test");
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        handoff.publish(event("message"));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handoff.stop();
+
+        assertEquals(numThreads * perThread, handled.size());
+        assertEquals(0, handoff.size());
+    }
+
+    @Test
+    public void testPublishAfterStop() {
+        AsyncHandoff handoff = new AsyncHandoff(4, new AsyncHandoff.BlockingWaitStrategy(), recorder);
+        handoff.start("test");
+        assertTrue(handoff.publish(event("before")));
+        handoff.stop();
+
+        assertFalse(handoff.publish(event("after")));
+        assertEquals(Collections.singletonList("before"), handled);
+    }
+
+    @Test
+    public void testStopWithFullRing() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AsyncHandoff handoff = new AsyncHandoff(2, new AsyncHandoff.BlockingWaitStrategy(),
+            new AsyncHandoff.EventHandler() {
+                @Override
+                public void onEvent(LogEvent event) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        handoff.start("test");
+        // One event held by the consumer, one in the ring
+        assertTrue(handoff.publish(event("held")));
+        Thread.sleep(50);
+        assertTrue(handoff.publish(event("queued")));
+
+        final AtomicBoolean published = new AtomicBoolean(true);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                published.set(handoff.publish(event("refused")));
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+
+        long start = System.currentTimeMillis();
+        handoff.stop(start + 100);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertFalse(published.get());
+        release.countDown();
+    }
+
+    @Test
+    public void testFullRingGivesUpAfterMaxWait() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncHandoff handoff = new AsyncHandoff(2, 100, new AsyncHandoff.BlockingWaitStrategy(),
+            new AsyncHandoff.EventHandler() {
+                @Override
+                public void onEvent(LogEvent event) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.add(event.getMessage().getFormattedMessage());
+                }
+            });
+        handoff.start("test");
+        assertTrue(handoff.publish(event("held")));
+        assertTrue(handoff.publish(event("queued")));
+
+        long start = System.currentTimeMillis();
+        assertFalse(handoff.publish(event("refused")));
+        long waited = System.currentTimeMillis() - start;
+        assertTrue(waited >= 90 && waited < 1000);
+        assertTrue(handoff.isRunning());
+
+        release.countDown();
+        handoff.stop();
+        assertEquals(Arrays.asList("held", "queued"), handled);
+    }
+}
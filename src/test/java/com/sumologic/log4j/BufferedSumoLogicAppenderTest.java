@@ -33,18 +33,26 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.ConfigurationSource;
 import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.config.xml.XmlConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.junit.LoggerContextRule;
+import org.apache.logging.log4j.message.SimpleMessage;
 import org.apache.logging.log4j.status.StatusLogger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author: Jose Muniz (jose@sumologic.com)
@@ -70,17 +78,32 @@ public class BufferedSumoLogicAppenderTest {
 
     }
 
-    private void setUpLogger(int batchSize, int windowSize, int precision) {
+    private static BufferedSumoLogicAppender createAppender(String name, String url, boolean lowGarbage, boolean async,
+                                                            SumoRoute[] routes, PatternLayout layout) {
+        return BufferedSumoLogicAppender.newBuilder()
+                .withName(name)
+                .withUrl(url)
+                .withLowGarbage(lowGarbage)
+                .withAsync(async)
+                .withRoutes(routes)
+                .withLayout(layout)
+                .build();
+    }
+
+    private void setUpLogger(int batchSize, int windowSize) {
+        setUpLogger(batchSize, windowSize, false, false, null);
+    }
+
+    private void setUpLogger(int batchSize, int windowSize, boolean lowGarbage, boolean async,
+                             SumoRoute[] routes) {
         StatusLogger.getLogger().setLevel(Level.DEBUG);
 
-        final LoggerContext context = init.getContext();
+        final LoggerContext context = init.getLoggerContext();
         final Configuration config = context.getConfiguration();
         final PatternLayout layout = PatternLayout.createLayout("%m%n", null, null, null, Charset.forName("UTF-8"), true, false, null, null);
-        final BufferedSumoLogicAppender appender = BufferedSumoLogicAppender.createAppender("test", ENDPOINT_URL, null,
-            60000, 1000, 10000, 250, 10000, 100, 1000000, null, -1, null, null, null, null, false, layout, null);
+        appender = createAppender("test", ENDPOINT_URL, lowGarbage, async, routes, layout);
         appender.setMessagesPerRequest(batchSize);
         appender.setMaxFlushInterval(windowSize);
-        appender.setFlushingAccuracy(precision);
         config.addAppender(appender);
 
         appender.initialize();
@@ -100,13 +123,37 @@ public class BufferedSumoLogicAppenderTest {
 
     @After
     public void tearDown() throws Exception {
+        // Otherwise its flusher may still send this test's messages during the next one
+        if (appender != null) {
+            init.getLoggerContext().getConfiguration().getLoggerConfig(loggerInTest.getName())
+                .removeAppender(appender.getName());
+            appender.stop();
+            appender = null;
+        }
         if (server != null)
             server.stop();
     }
 
+    @Test
+    public void testBuiltFromConfiguration() throws Exception {
+        String xml = "<Configuration><Appenders>" +
+            "<BufferedSumoLogic name=\"configured\" url=\"" + ENDPOINT_URL + "\" messagesPerRequest=\"1\"" +
+            " proxyHost=\"proxy\" proxyPort=\"3128\"><PatternLayout pattern=\"%m%n\"/></BufferedSumoLogic>" +
+            "</Appenders></Configuration>";
+        ConfigurationSource source = new ConfigurationSource(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        XmlConfiguration config = new XmlConfiguration(init.getLoggerContext(), source);
+        config.initialize();
+
+        BufferedSumoLogicAppender configured = config.getAppender("configured");
+        assertEquals("proxy", configured.getProxyHost());
+        assertEquals(3128, configured.getProxyPort());
+        // Attributes left out keep their defaults
+        assertEquals(null, configured.getProxyAuth());
+    }
+
     @Test
     public void testSingleMessage() throws Exception {
-        setUpLogger(1, 10000, 10);
+        setUpLogger(1, 10000);
 
         loggerInTest.info("This is a message");
 
@@ -115,9 +162,67 @@ public class BufferedSumoLogicAppenderTest {
         assertEquals(handler.getExchanges().get(0).getBody(), "This is a message\n");
     }
 
+    @Test
+    public void testLowGarbage() throws Exception {
+        setUpLogger(2, 10000, true, false, null);
+
+        // Longer than the initial encoding buffer, so the destination has to grow
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append('x');
+        }
+        loggerInTest.info("Caf\u00e9");
+        loggerInTest.info(large.toString());
+
+        Thread.sleep(1000);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("Caf\u00e9\n" + large + "\n", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testAsyncHandoff() throws Exception {
+        setUpLogger(3, 10000, false, true, null);
+
+        loggerInTest.info("message1");
+        loggerInTest.info("message2");
+        loggerInTest.info("message3");
+
+        Thread.sleep(1000);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("message1\nmessage2\nmessage3\n", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        SumoRoute[] routes = new SumoRoute[] {
+            SumoRoute.createRoute("BufferedSumoLogicAppenderTest", "WARN", null, null, null, "warnings", "host1"),
+            SumoRoute.createRoute("BufferedSumoLogicAppenderTest", null, null, null, "routed", "everything", null)
+        };
+        setUpLogger(3, 10000, false, false, routes);
+
+        loggerInTest.info("info1");
+        loggerInTest.warn("warn1");
+        loggerInTest.info("info2");
+
+        Thread.sleep(1000);
+        assertEquals(2, handler.getExchanges().size());
+
+        MaterializedHttpRequest info = handler.getExchanges().get(0);
+        assertEquals("info1\ninfo2\n", info.getBody());
+        assertEquals("routed", info.getHeaders().getFirst("X-Sumo-Name"));
+        assertEquals("everything", info.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals(null, info.getHeaders().getFirst("X-Sumo-Host"));
+
+        MaterializedHttpRequest warn = handler.getExchanges().get(1);
+        assertEquals("warn1\n", warn.getBody());
+        assertNotEquals("routed", warn.getHeaders().getFirst("X-Sumo-Name"));
+        assertEquals("warnings", warn.getHeaders().getFirst("X-Sumo-Category"));
+        assertEquals("host1", warn.getHeaders().getFirst("X-Sumo-Host"));
+    }
+
     @Test
     public void testMultipleMessages() throws Exception {
-        setUpLogger(1, 10000, 1);
+        setUpLogger(1, 10000);
 
         int numMessages = 5;
         for (int i = 0; i < numMessages; i ++) {
@@ -132,7 +237,7 @@ public class BufferedSumoLogicAppenderTest {
     @Test
     public void testBatchingBySize() throws Exception {
         // Huge window, ensure all messages get batched into one
-        setUpLogger(100, 10000, 1);
+        setUpLogger(100, 10000);
 
         int numMessages = 100;
         for (int i = 0; i < numMessages; i ++) {
@@ -144,10 +249,113 @@ public class BufferedSumoLogicAppenderTest {
         assertEquals(handler.getExchanges().size(), 1);
     }
 
+    @Test
+    public void testFullBatchShipsImmediately() throws Exception {
+        setUpLogger(5, 10000);
+
+        for (int i = 0; i < 5; i++) {
+            loggerInTest.info("info " + i);
+        }
+
+        Thread.sleep(200);
+        assertEquals(1, handler.getExchanges().size());
+    }
+
+    @Test
+    public void testSharedDispatcher() throws Exception {
+        setUpLogger(2, 10000);
+        appender.stop();
+        appender.setSharedDispatcher(true);
+        appender.start();
+
+        loggerInTest.info("message1");
+        loggerInTest.info("message2");
+
+        Thread.sleep(500);
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("message1\nmessage2\n", handler.getExchanges().get(0).getBody());
+    }
+
+    @Test
+    public void testAsyncSender() throws Exception {
+        // A flush may drain an odd number of messages, leaving one to go out at the deadline
+        setUpLogger(2, 100);
+        appender.stop();
+        appender.setAsyncSender(true);
+        appender.setSenderConcurrency(4);
+        appender.start();
+
+        for (int i = 0; i < 8; i++) {
+            loggerInTest.info("message" + i);
+        }
+
+        Thread.sleep(500);
+        // How many requests depends on how much was queued by each flush
+        int requests = handler.getExchanges().size();
+        StringBuilder bodies = new StringBuilder();
+        for (MaterializedHttpRequest request: handler.getExchanges()) {
+            bodies.append(request.getBody());
+        }
+        assertEquals(8, bodies.toString().split("\n").length);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(bodies.toString().contains("message" + i + "\n"));
+        }
+
+        // And drained through it when stopping
+        loggerInTest.info("last");
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+        assertEquals(requests + 1, handler.getExchanges().size());
+        assertEquals("last\n", handler.getExchanges().get(requests).getBody());
+    }
+
+    @Test
+    public void testSharedDispatcherIsolatesAppenders() throws Exception {
+        setUpLogger(1, 10000);
+        appender.stop();
+        appender.setSharedDispatcher(true);
+        appender.start();
+
+        // Retries against a collector which is down for as long as it's allowed to
+        PatternLayout layout = PatternLayout.createLayout("%m%n", null, null, null, Charset.forName("UTF-8"), true, false, null, null);
+        BufferedSumoLogicAppender stuck = createAppender("stuck", "http://localhost:10019", false, false, null, layout);
+        stuck.setMessagesPerRequest(1);
+        stuck.setSharedDispatcher(true);
+        stuck.setCircuitBreakerThreshold(0);
+        stuck.initialize();
+        stuck.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                stuck.append(Log4jLogEvent.newBuilder().setLoggerName("stuck").setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage("stuck" + i)).build());
+            }
+            Thread.sleep(100);
+
+            loggerInTest.info("message1");
+            Thread.sleep(500);
+            assertEquals(1, handler.getExchanges().size());
+            assertEquals("message1\n", handler.getExchanges().get(0).getBody());
+        } finally {
+            stuck.stop(100, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void testDrainOnStop() throws Exception {
+        setUpLogger(100, 10000);
+
+        loggerInTest.info("message1");
+        loggerInTest.info("message2");
+        assertEquals(0, handler.getExchanges().size());
+
+        assertTrue(appender.stop(1, TimeUnit.SECONDS));
+        assertEquals(1, handler.getExchanges().size());
+        assertEquals("message1\nmessage2\n", handler.getExchanges().get(0).getBody());
+    }
+
     @Test
     public void testBatchingByWindow() throws Exception {
         // Small window, ensure all messages get batched by time
-        setUpLogger(10000, 500, 1);
+        setUpLogger(10000, 500);
 
         loggerInTest.info("message1");
         loggerInTest.info("message2");
@@ -0,0 +1,148 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerRateLimiterTest {
+
+    private static class ManualClockLimiter extends LoggerRateLimiter {
+        long now = 0;
+
+        ManualClockLimiter(long eventsPerSecond, long bytesPerSecond, int loggerDepth, int maxLoggers) {
+            super(eventsPerSecond, bytesPerSecond, loggerDepth, maxLoggers);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        void advance(long millis) {
+            now += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    @Test
+    public void testEventBudget() {
+        ManualClockLimiter limiter = new ManualClockLimiter(2, 0, 0, 10);
+        assertTrue(limiter.tryAcquire("a", 10));
+        assertTrue(limiter.tryAcquire("a", 10));
+        assertFalse(limiter.tryAcquire("a", 10));
+
+        // Other loggers have their own budget
+        assertTrue(limiter.tryAcquire("b", 10));
+
+        limiter.advance(500);
+        assertTrue(limiter.tryAcquire("a", 10));
+        assertFalse(limiter.tryAcquire("a", 10));
+    }
+
+    @Test
+    public void testEventCheckedBeforeBytes() {
+        ManualClockLimiter limiter = new ManualClockLimiter(2, 100, 0, 10);
+        assertTrue(limiter.tryAcquireEvent("a"));
+        assertTrue(limiter.tryAcquireBytes("a", 100));
+
+        // Out of bytes: refused before the size is known
+        assertFalse(limiter.tryAcquireEvent("a"));
+
+        // Refused bytes hand the event back
+        limiter.advance(500);
+        assertTrue(limiter.tryAcquireEvent("a"));
+        assertFalse(limiter.tryAcquireBytes("a", 80));
+        assertTrue(limiter.tryAcquireEvent("a"));
+        assertTrue(limiter.tryAcquireBytes("a", 50));
+        assertEquals("Rate limit dropped 2 events (80 bytes): a=2", limiter.drainSummary());
+    }
+
+    @Test
+    public void testByteBudget() {
+        ManualClockLimiter limiter = new ManualClockLimiter(0, 100, 0, 10);
+        assertTrue(limiter.tryAcquire("a", 60));
+        assertFalse(limiter.tryAcquire("a", 60));
+        assertTrue(limiter.tryAcquire("a", 40));
+
+        // Larger than the whole budget, so it waits for a full bucket
+        limiter.advance(1000);
+        assertTrue(limiter.tryAcquire("a", 250));
+        limiter.advance(1000);
+        assertFalse(limiter.tryAcquire("a", 1));
+    }
+
+    @Test
+    public void testLoggerDepth() {
+        ManualClockLimiter limiter = new ManualClockLimiter(1, 0, 2, 10);
+        assertTrue(limiter.tryAcquire("com.acme.a", 1));
+        assertFalse(limiter.tryAcquire("com.acme.b.C", 1));
+        assertTrue(limiter.tryAcquire("com.other", 1));
+        assertEquals(2, limiter.trackedLoggers());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedLoggersAreForgotten() {
+        ManualClockLimiter limiter = new ManualClockLimiter(1, 0, 0, 10);
+        for (int i = 0; i < 10; i++) {
+            limiter.advance(1);
+            limiter.tryAcquire("logger" + i, 1);
+        }
+        assertEquals(10, limiter.trackedLoggers());
+
+        limiter.advance(1);
+        assertFalse(limiter.tryAcquire("logger9", 1));
+        limiter.advance(1);
+        limiter.tryAcquire("new", 1);
+        assertEquals(9, limiter.trackedLoggers());
+
+        // Still tracked, so still out of budget
+        assertFalse(limiter.tryAcquire("logger9", 1));
+        // Forgotten, so it starts over with a full bucket
+        assertTrue(limiter.tryAcquire("logger0", 1));
+    }
+
+    @Test
+    public void testSummary() {
+        ManualClockLimiter limiter = new ManualClockLimiter(1, 0, 0, 10);
+        assertNull(limiter.drainSummary());
+
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire("noisy", 5);
+        }
+        limiter.tryAcquire("quiet", 5);
+        limiter.tryAcquire("quiet", 5);
+
+        assertEquals("Rate limit dropped 4 events (20 bytes): noisy=3, quiet=1", limiter.drainSummary());
+        assertNull(limiter.drainSummary());
+    }
+}
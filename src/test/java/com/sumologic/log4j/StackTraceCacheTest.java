@@ -0,0 +1,109 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StackTraceCacheTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static Exception fail(String message) {
+        return new IllegalStateException(message, new RuntimeException("cause"));
+    }
+
+    // Created from a single call site, so the frames match
+    private static Exception[] fail(String message, int times) {
+        Exception[] exceptions = new Exception[times];
+        for (int i = 0; i < times; i++) {
+            exceptions[i] = fail(message);
+        }
+        return exceptions;
+    }
+
+    @Test
+    public void testRepeatsReuseRendering() {
+        StackTraceCache cache = new StackTraceCache(16, false);
+        Exception[] repeated = fail("boom", 2);
+        byte[] first = cache.render(repeated[0]);
+        byte[] second = cache.render(repeated[1]);
+
+        assertSame(first, second);
+        String text = new String(first, UTF8);
+        assertTrue(text.startsWith("java.lang.IllegalStateException: boom\n"));
+        assertTrue(text.contains("Caused by: java.lang.RuntimeException: cause"));
+    }
+
+    @Test
+    public void testDifferentMessagesAreNotShared() {
+        StackTraceCache cache = new StackTraceCache(16, false);
+        byte[] first = cache.render(fail("boom"));
+        byte[] second = cache.render(fail("bang"));
+
+        assertNotSame(first, second);
+        assertTrue(new String(second, UTF8).startsWith("java.lang.IllegalStateException: bang\n"));
+    }
+
+    @Test
+    public void testCollapseRepeats() {
+        StackTraceCache cache = new StackTraceCache(16, true);
+        Exception[] repeated = fail("boom", 2);
+        String first = new String(cache.render(repeated[0]), UTF8);
+        String second = new String(cache.render(repeated[1]), UTF8);
+
+        String id = first.substring(first.lastIndexOf("[stack trace ") + 13, first.lastIndexOf("]"));
+        assertEquals("java.lang.IllegalStateException: boom\n\t... same stack trace as " + id + "\n", second);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        StackTraceCache cache = new StackTraceCache(1, true);
+        Exception[] repeated = fail("boom", 2);
+        cache.render(repeated[0]);
+        cache.render(fail("bang"));
+
+        // No longer cached, so rendered in full again
+        assertTrue(new String(cache.render(repeated[1]), UTF8).contains("[stack trace "));
+    }
+
+    @Test
+    public void testDisabled() {
+        StackTraceCache cache = new StackTraceCache(0, true);
+        Exception[] repeated = fail("boom", 2);
+        String text = new String(cache.render(repeated[0]), UTF8);
+        assertFalse(text.contains("[stack trace "));
+        assertEquals(text, new String(cache.render(repeated[1]), UTF8));
+    }
+}
@@ -27,6 +27,7 @@ package com.sumologic.log4j;
 
 
 import com.sumologic.log4j.server.AggregatingHttpHandler;
+import com.sumologic.log4j.server.MaterializedHttpRequest;
 import com.sumologic.log4j.server.MockHttpServer;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -42,6 +43,8 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -58,10 +61,14 @@ public class SumoLogicAppenderTest {
 
 
     private void setUpLogger() {
-        final LoggerContext context = init.getContext();
+        setUpLogger(0);
+    }
+
+    private void setUpLogger(int linger) {
+        final LoggerContext context = init.getLoggerContext();
         final Configuration config = context.getConfiguration();
         final PatternLayout layout = PatternLayout.createLayout("-- %m%n", null, null, null, Charset.forName("UTF-8"), true, false, null, null);
-        final SumoLogicAppender sla = SumoLogicAppender.createAppender("test", ENDPOINT_URL, 5000, 5000, false, layout, null);
+        final SumoLogicAppender sla = SumoLogicAppender.createAppender("test", ENDPOINT_URL, 5000, 5000, linger, 100, false, layout, null);
         sla.initialize();
         sla.start();
         config.addAppender(sla);
@@ -79,8 +86,6 @@ public class SumoLogicAppenderTest {
         server = new MockHttpServer(PORT, handler);
 
         server.start();
-
-        setUpLogger();
     }
 
     @After
@@ -90,6 +95,7 @@ public class SumoLogicAppenderTest {
 
     @Test
     public void testSingleMessage() throws Exception {
+        setUpLogger();
         loggerInTest.info("This is a message");
 
         assertEquals(1, handler.getExchanges().size());
@@ -98,6 +104,7 @@ public class SumoLogicAppenderTest {
 
     @Test
     public void testMultipleMessages() throws Exception {
+        setUpLogger();
         int numMessages = 20;
         for (int i = 0; i < numMessages / 2; i ++) {
             loggerInTest.info("info " + i);
@@ -106,4 +113,47 @@ public class SumoLogicAppenderTest {
 
         assertEquals(numMessages, handler.getExchanges().size());
     }
+
+    @Test
+    public void testLinger() throws Exception {
+        setUpLogger(200);
+        int numThreads = 20;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger sentOnReturn = new AtomicInteger(0);
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final String message = "linger " + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    loggerInTest.info(message);
+                    // Returning means the message is already at the server
+                    for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+                        if (exchange.getBody().contains("-- " + message + "\n")) {
+                            sentOnReturn.incrementAndGet();
+                            break;
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(numThreads, sentOnReturn.get());
+        assertTrue(handler.getExchanges().size() < numThreads);
+        int lines = 0;
+        for (MaterializedHttpRequest exchange : handler.getExchanges()) {
+            lines += exchange.getBody().split("\n").length;
+        }
+        assertEquals(numThreads, lines);
+    }
 }
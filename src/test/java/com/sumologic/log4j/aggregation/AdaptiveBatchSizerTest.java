@@ -0,0 +1,78 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void testGrowsWhileLatencyIsFlat() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(80, 10, 1000, 2000);
+        sizer.record(80, 100, true);
+        assertEquals(90, sizer.getBatchSize());
+        sizer.record(90, 105, true);
+        assertEquals(101, sizer.getBatchSize());
+
+        // Batches which weren't full don't tell us anything
+        sizer.record(20, 100, true);
+        assertEquals(101, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testShrinksWhenLatencyRises() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(80, 10, 1000, 2000);
+        sizer.record(80, 100, true);
+        sizer.record(90, 400, true);
+        assertEquals(79, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testHalvesOnFailureOrCeiling() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(80, 10, 1000, 2000);
+        sizer.record(80, 100, false);
+        assertEquals(40, sizer.getBatchSize());
+        sizer.record(40, 2500, true);
+        assertEquals(20, sizer.getBatchSize());
+        sizer.record(20, 2500, true);
+        sizer.record(10, 2500, true);
+        assertEquals(10, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(5000, 10, 100, 2000);
+        assertEquals(100, sizer.getBatchSize());
+        for (int i = 0; i < 10; i++) {
+            sizer.record(100, 50, true);
+        }
+        assertTrue(sizer.getBatchSize() <= 100);
+    }
+}
@@ -27,19 +27,29 @@ package com.sumologic.log4j.aggregation;
 
 import com.sumologic.log4j.queue.BufferWithFifoEviction;
 import com.sumologic.log4j.queue.CostBoundedConcurrentQueue;
+import com.sumologic.log4j.queue.SpoolBufferWithFifoEviction;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author: Jose Muniz (jose@sumologic.com)
  */
 public class BufferFlushingTaskTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     public CostBoundedConcurrentQueue.CostAssigner<String> sizeElements =
         new CostBoundedConcurrentQueue.CostAssigner<String>() {
             @Override
@@ -78,8 +88,9 @@ public class BufferFlushingTaskTest {
             }
 
             @Override
-            protected void sendOut(List<String> body, String name) {
+            protected boolean sendOut(List<String> body, String name) {
                 tasks.add(body);
+                return true;
             }
         };
 
@@ -101,6 +112,340 @@ public class BufferFlushingTaskTest {
     }
 
 
+    @Test
+    public void testCommitWaitsForBatchesInFlight() throws Exception {
+        final List<BufferFlushingTask.SendCallback> callbacks = new ArrayList<BufferFlushingTask.SendCallback>();
+        final List<Object> commits = new ArrayList<Object>();
+
+        BufferWithFifoEviction<String> queue =
+                new BufferWithFifoEviction<String>(1000, sizeElements) {
+            private String last;
+
+            @Override
+            public int drainTo(Collection<String> collection, int maxElements, Collection<Integer> tags) {
+                List<String> drained = new ArrayList<String>();
+                int count = super.drainTo(drained, maxElements, tags);
+                if (count > 0) last = drained.get(count - 1);
+                collection.addAll(drained);
+                return count;
+            }
+
+            @Override
+            public Object getDrainedPosition() {
+                return "after " + last;
+            }
+
+            @Override
+            public void commit(Object position) {
+                commits.add(position);
+            }
+        };
+        BufferFlushingTask<String, List<String>> task =
+                new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return messages;
+            }
+
+            @Override
+            protected boolean sendOut(List<String> body, String name) {
+                return true;
+            }
+
+            @Override
+            protected void send(List<String> messages, SendCallback callback) {
+                callbacks.add(callback);
+            }
+        };
+        task.setMaxInFlight(3);
+
+        queue.add("msg1");
+        task.flush();
+        queue.add("msg2");
+        task.flush();
+        queue.add("msg3");
+        task.flush();
+        assertEquals(3, callbacks.size());
+
+        callbacks.get(1).completed(true);
+        assertEquals(0, commits.size());
+        // Commits what was sent so far, even with more in flight
+        callbacks.get(0).completed(true);
+        assertEquals(Arrays.<Object>asList("after msg2"), commits);
+        callbacks.get(2).completed(true);
+        assertEquals(Arrays.<Object>asList("after msg2", "after msg3"), commits);
+    }
+
+
+    @Test
+    public void testFailedBatchIsNeverCommittedPast() throws Exception {
+        final List<BufferFlushingTask.SendCallback> callbacks = new ArrayList<BufferFlushingTask.SendCallback>();
+        final List<List<byte[]>> sent = new ArrayList<List<byte[]>>();
+        File directory = folder.getRoot();
+
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(1000, directory);
+        BufferFlushingTask<byte[], List<byte[]>> task =
+                new BufferFlushingTask<byte[], List<byte[]>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected long getMaxMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected List<byte[]> aggregate(List<byte[]> messages) {
+                return messages;
+            }
+
+            @Override
+            protected boolean sendOut(List<byte[]> body, String name) {
+                return true;
+            }
+
+            @Override
+            protected void send(List<byte[]> messages, SendCallback callback) {
+                sent.add(messages);
+                callbacks.add(callback);
+            }
+        };
+        task.setMaxInFlight(2);
+
+        queue.add("msg1".getBytes());
+        queue.add("msg2".getBytes());
+        task.flush();
+        assertEquals(2, callbacks.size());
+
+        callbacks.get(0).completed(false);
+        callbacks.get(1).completed(true);
+
+        // Handed out again right away
+        assertEquals(2, queue.size());
+        // And replayed after a restart
+        SpoolBufferWithFifoEviction reopened = new SpoolBufferWithFifoEviction(1000, directory);
+        List<byte[]> replayed = new ArrayList<byte[]>();
+        reopened.drainTo(replayed);
+        assertEquals(2, replayed.size());
+        assertEquals("msg1", new String(replayed.get(0)));
+
+        task.flush();
+        assertEquals("msg1", new String(sent.get(2).get(0)));
+        assertEquals("msg2", new String(sent.get(3).get(0)));
+        callbacks.get(2).completed(true);
+        callbacks.get(3).completed(true);
+        assertEquals(0, new SpoolBufferWithFifoEviction(1000, directory).size());
+    }
+
+
+    @Test
+    public void testBatchHeldWhileSuspended() throws Exception {
+        final List<List<String>> sent = new ArrayList<List<String>>();
+        final boolean[] suspended = {true};
+        final int[] held = {0};
+
+        BufferWithFifoEviction<String> queue =
+                new BufferWithFifoEviction<String>(1000, sizeElements);
+        BufferFlushingTask<String, List<String>> task =
+                new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 1;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return messages;
+            }
+
+            @Override
+            protected boolean sendOut(List<String> body, String name) {
+                if (suspended[0]) return false;
+                sent.add(body);
+                return true;
+            }
+
+            @Override
+            protected boolean shouldHold() {
+                return suspended[0];
+            }
+        };
+        task.setHoldListener(new Runnable() {
+            @Override
+            public void run() {
+                held[0]++;
+            }
+        });
+
+        queue.add("msg1");
+        task.flush();
+        assertEquals(1, held[0]);
+        assertTrue(task.hasHeld());
+        assertFalse(task.awaitInFlight(0));
+
+        // Held again, not lost, while still suspended
+        queue.add("msg2");
+        task.flush();
+        assertEquals(3, held[0]);
+
+        suspended[0] = false;
+        task.flush();
+        assertFalse(task.hasHeld());
+        assertEquals(Arrays.asList(Arrays.asList("msg1"), Arrays.asList("msg2")), sent);
+        assertTrue(task.awaitInFlight(0));
+    }
+
+    @Test
+    public void testSplitIntoRequests() throws Exception {
+        final List<List<String>> tasks = new ArrayList<List<String>>();
+        final List<Integer> reported = new ArrayList<Integer>();
+
+        BufferWithFifoEviction<String> queue =
+                new BufferWithFifoEviction<String>(1000, sizeElements);
+        BufferFlushingTask<String, List<String>> task =
+                new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 2;
+            }
+
+            @Override
+            protected long getMaxMessagesPerRequest() {
+                return 2;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return new ArrayList<String>(messages);
+            }
+
+            @Override
+            protected boolean sendOut(List<String> body, String name) {
+                tasks.add(body);
+                return true;
+            }
+
+            @Override
+            protected void onSent(int messages, long latency, boolean sent) {
+                reported.add(messages);
+            }
+        };
+
+        queue.add("msg1");
+        queue.add("msg2");
+        queue.add("msg3");
+        task.run();
+
+        assertEquals(Arrays.asList(Arrays.asList("msg1", "msg2"), Arrays.asList("msg3")), tasks);
+        assertEquals(Arrays.asList(2, 1), reported);
+    }
+
+    @Test
+    public void testFlushLimitedRequests() throws Exception {
+        final List<List<String>> tasks = new ArrayList<List<String>>();
+
+        BufferWithFifoEviction<String> queue =
+                new BufferWithFifoEviction<String>(1000, sizeElements);
+        BufferFlushingTask<String, List<String>> task =
+                new BufferFlushingTask<String, List<String>>(queue) {
+
+            @Override
+            protected long getMaxFlushInterval() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            protected long getMessagesPerRequest() {
+                return 2;
+            }
+
+            @Override
+            protected long getMaxMessagesPerRequest() {
+                return 2;
+            }
+
+            @Override
+            protected String getName() {
+                return "No-name";
+            }
+
+            @Override
+            protected List<String> aggregate(List<String> messages) {
+                return new ArrayList<String>(messages);
+            }
+
+            @Override
+            protected boolean sendOut(List<String> body, String name) {
+                tasks.add(body);
+                return true;
+            }
+        };
+
+        for (int i = 1; i <= 5; i++) {
+            queue.add("msg" + i);
+        }
+        // One request per turn; the rest waits for the next one
+        task.flush(1);
+        assertEquals(Arrays.asList(Arrays.asList("msg1", "msg2")), tasks);
+        assertEquals(3, queue.size());
+
+        task.flush();
+        assertEquals(3, tasks.size());
+        assertEquals(0, queue.size());
+    }
+
+
     @Test
     public void testFlushByDate() throws Exception {
 
@@ -0,0 +1,61 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.aggregation;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharedDispatcherTest {
+
+    @Test
+    public void testSharedUntilLastRelease() {
+        ScheduledExecutorService first = SharedDispatcher.acquire();
+        ScheduledExecutorService second = SharedDispatcher.acquire();
+        assertSame(first, second);
+        assertEquals(2, SharedDispatcher.getReferences());
+
+        SharedDispatcher.release();
+        assertFalse(first.isShutdown());
+        SharedDispatcher.release();
+        assertTrue(first.isShutdown());
+        assertEquals(0, SharedDispatcher.getReferences());
+
+        // Extra releases don't break the next user
+        SharedDispatcher.release();
+        ScheduledExecutorService third = SharedDispatcher.acquire();
+        assertNotSame(first, third);
+        assertFalse(third.isShutdown());
+        SharedDispatcher.release();
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private long now = 0;
+
+    private CircuitBreaker breaker(int threshold, long openTime) {
+        return new CircuitBreaker(threshold, openTime) {
+            @Override
+            protected long currentTime() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testOpensAfterFailuresInARow() {
+        CircuitBreaker breaker = breaker(3, 1000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.isOpen());
+
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+        now = 400;
+        assertEquals(600, breaker.getRemainingOpenTime());
+    }
+
+    @Test
+    public void testSingleProbe() {
+        CircuitBreaker breaker = breaker(1, 1000);
+        breaker.recordFailure();
+        now = 1000;
+        assertFalse(breaker.isOpen());
+
+        assertTrue(breaker.allowRequest());
+        // Everyone else waits for the probe
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.isOpen());
+
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testFailedProbeReopens() {
+        CircuitBreaker breaker = breaker(5, 1000);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure();
+        }
+        now = 1000;
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+        now = 1999;
+        assertFalse(breaker.allowRequest());
+        now = 2000;
+        assertTrue(breaker.allowRequest());
+    }
+}
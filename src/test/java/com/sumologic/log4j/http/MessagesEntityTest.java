@@ -0,0 +1,112 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessagesEntityTest {
+
+    private static byte[] bytes(String text) throws IOException {
+        return text.getBytes("UTF-8");
+    }
+
+    private static String written(MessagesEntity entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testWritesMessagesInOrder() throws Exception {
+        List<byte[]> messages = Arrays.asList(bytes("first\n"), bytes("second\n"));
+
+        MessagesEntity entity = new MessagesEntity(messages, null);
+        assertEquals(13, entity.getContentLength());
+        assertEquals("first\nsecond\n", written(entity));
+        // Again, as for a retry
+        assertEquals("first\nsecond\n", written(entity));
+    }
+
+    @Test
+    public void testReadsMessagesInOrder() throws Exception {
+        List<byte[]> messages = Arrays.asList(bytes("first\n"), bytes(""), bytes("second\n"));
+
+        InputStream in = new MessagesEntity(messages, null).getContent();
+        byte[] chunk = new byte[4];
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            read.write(chunk, 0, count);
+        }
+        assertEquals("first\nsecond\n", read.toString("UTF-8"));
+    }
+
+    @Test
+    public void testCompressesWhileWriting() throws Exception {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            messages.add(bytes("message " + i + "\n"));
+            expected.append("message ").append(i).append('\n');
+        }
+        RequestCompressor compressor = new RequestCompressor(RequestCompressor.GZIP, Deflater.DEFAULT_COMPRESSION);
+
+        MessagesEntity entity = new MessagesEntity(messages, compressor);
+        assertEquals(-1, entity.getContentLength());
+        assertTrue(entity.isChunked());
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            entity.writeTo(out);
+            assertTrue(out.size() < expected.length() / 2);
+
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                plain.write(c);
+            }
+            assertEquals(expected.toString(), plain.toString("UTF-8"));
+        }
+        // Both attempts used the same deflater
+        assertEquals(1, compressor.getPooled());
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCompressorTest {
+
+    private static byte[] logLines(int count) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            lines.append("2016-11-02 12:00:00.000 [main] INFO  com.example.Service - request ").append(i).append('\n');
+        }
+        return lines.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        RequestCompressor compressor = new RequestCompressor(RequestCompressor.GZIP, Deflater.DEFAULT_COMPRESSION);
+        byte[] body = logLines(1000);
+
+        byte[] compressed = compressor.compress(body);
+        assertTrue(compressed.length < body.length / 4);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        RequestCompressor compressor = new RequestCompressor(RequestCompressor.DEFLATE, Deflater.BEST_SPEED);
+        byte[] body = logLines(1000);
+
+        byte[] compressed = compressor.compress(body);
+        assertTrue(compressed.length < body.length / 4);
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testIncompressible() throws Exception {
+        RequestCompressor compressor = new RequestCompressor(RequestCompressor.GZIP, Deflater.BEST_COMPRESSION);
+        byte[] body = new byte[10000];
+        new Random(42).nextBytes(body);
+
+        // Has to grow past its initial guess
+        byte[] compressed = compressor.compress(body);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testDeflatersAreReused() throws Exception {
+        RequestCompressor compressor = new RequestCompressor(RequestCompressor.GZIP, Deflater.DEFAULT_COMPRESSION);
+        assertEquals(0, compressor.getPooled());
+
+        byte[] first = compressor.compress(logLines(10));
+        assertEquals(1, compressor.getPooled());
+        byte[] second = compressor.compress(logLines(10));
+        assertEquals(1, compressor.getPooled());
+        // A reset deflater gives the same output as a fresh one
+        assertArrayEquals(first, second);
+
+        compressor.close();
+        assertEquals(0, compressor.getPooled());
+        assertArrayEquals(logLines(10), readAll(new GZIPInputStream(new ByteArrayInputStream(compressor.compress(logLines(10))))));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static RetryPolicy policy(long initial, long max, int attempts, long time, final double random) {
+        return new RetryPolicy(initial, max, attempts, time) {
+            @Override
+            protected double random() {
+                return random;
+            }
+        };
+    }
+
+    @Test
+    public void testBackoffDoublesUpToMaximum() {
+        RetryPolicy policy = policy(100, 1000, 0, 0, 0.999999);
+        assertEquals(100, policy.backoff(1, 0));
+        assertEquals(200, policy.backoff(2, 0));
+        assertEquals(400, policy.backoff(3, 0));
+        assertEquals(800, policy.backoff(4, 0));
+        assertEquals(1000, policy.backoff(5, 0));
+        assertEquals(1000, policy.backoff(100, 0));
+    }
+
+    @Test
+    public void testFullJitter() {
+        assertEquals(0, policy(100, 1000, 0, 0, 0).backoff(3, 0));
+        assertEquals(200, policy(100, 1000, 0, 0, 0.5).backoff(3, 0));
+        // Unless the server asked for longer
+        assertEquals(5000, policy(100, 1000, 0, 0, 0.5).backoff(3, 5000));
+    }
+
+    @Test
+    public void testLimits() {
+        RetryPolicy unlimited = policy(100, 1000, 0, 0, 0);
+        assertTrue(unlimited.shouldRetry(1000000, Long.MAX_VALUE));
+
+        RetryPolicy byAttempts = policy(100, 1000, 3, 0, 0);
+        assertTrue(byAttempts.shouldRetry(2, 0));
+        assertFalse(byAttempts.shouldRetry(3, 0));
+
+        RetryPolicy byTime = policy(100, 1000, 0, 5000, 0);
+        assertTrue(byTime.shouldRetry(100, 4999));
+        assertFalse(byTime.shouldRetry(1, 5000));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SumoHttpSenderTest {
+
+    // Nothing listens there, so every attempt fails
+    private static final String UNREACHABLE_URL = "http://localhost:10019";
+
+    private static SumoHttpSender unreachableSender() {
+        SumoHttpSender sender = new SumoHttpSender();
+        sender.setUrl(UNREACHABLE_URL);
+        sender.setProxySettings(new ProxySettings(null, -1, null, null, null, null));
+        sender.setRetryInterval(10);
+        sender.setMaxRetryInterval(10);
+        return sender;
+    }
+
+    @Test
+    public void testOpenBreakerFailsFast() throws Exception {
+        SumoHttpSender sender = unreachableSender();
+        sender.setCircuitBreaker(2, 60000);
+        sender.init();
+        try {
+            long start = System.currentTimeMillis();
+            assertFalse(sender.send("message".getBytes(), "test"));
+            assertTrue(sender.isSuspended());
+
+            assertFalse(sender.send("message".getBytes(), "test"));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            sender.close();
+        }
+    }
+
+    @Test
+    public void testGiveUpBy() throws Exception {
+        SumoHttpSender sender = unreachableSender();
+        sender.setCircuitBreaker(0, 0);
+        sender.init();
+        try {
+            long start = System.currentTimeMillis();
+            sender.giveUpBy(start + 200);
+            assertFalse(sender.send("message".getBytes(), "test"));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            sender.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BufferWithBackpressureTest {
+
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> countCost =
+        new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+            @Override
+            public long cost(Integer e) {
+                return 1;
+            }
+        };
+
+    private BufferWithBackpressure<Integer> queue(long capacity, long timeout) {
+        return new BufferWithBackpressure<Integer>(
+                new BufferWithFifoEviction<Integer>(capacity, countCost), countCost, timeout);
+    }
+
+    @Test
+    public void testDropNew() {
+        BufferWithBackpressure<Integer> queue = queue(3, 0);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i <= 3, queue.add(i));
+        }
+
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result);
+        assertEquals(Arrays.asList(1, 2, 3), result);
+        assertEquals(2, queue.getEvictions().getCount());
+    }
+
+    @Test
+    public void testBlockUntilDrained() throws Exception {
+        final BufferWithBackpressure<Integer> queue = queue(2, 10000);
+        queue.add(1);
+        queue.add(2);
+
+        final AtomicBoolean added = new AtomicBoolean(false);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                added.set(queue.add(3));
+            }
+        });
+        producer.start();
+
+        Thread.sleep(100);
+        assertTrue(producer.isAlive());
+
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result);
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertTrue(added.get());
+        assertEquals(Arrays.asList(1, 2), result);
+
+        result.clear();
+        queue.drainTo(result);
+        assertEquals(Arrays.asList(3), result);
+    }
+
+    @Test
+    public void testBlockTimesOut() {
+        BufferWithBackpressure<Integer> queue = queue(1, 50);
+        queue.add(1);
+
+        long start = System.currentTimeMillis();
+        assertFalse(queue.add(2));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result);
+        assertEquals(Arrays.asList(1), result);
+    }
+}
@@ -110,6 +110,7 @@ public class BufferWithFifoEvictionTest {
 
         assertEquals(3, result.size());
         assertEquals(Arrays.asList(3, 4, 5), result);
+        assertEquals(2, queue.getEvictions().getCount());
 
     }
 
@@ -147,5 +148,49 @@ public class BufferWithFifoEvictionTest {
 
     }
 
+    @Test
+    public void testShrinkCapacity() {
+        queue = new BufferWithFifoEviction<Integer>(10, countCost);
+        for (int i = 1; i <= 10; i++) {
+            queue.add(i);
+        }
+
+        queue.setCapacity(4);
+        assertEquals(4, queue.size());
+
+        queue.add(11);
+        List<Integer> result = new ArrayList<Integer>(4);
+        queue.drainTo(result);
+
+        assertEquals(Arrays.asList(8, 9, 10, 11), result);
+    }
+
+    @Test
+    public void testGrowCapacity() {
+        queue = new BufferWithFifoEviction<Integer>(2, countCost);
+        queue.setCapacity(5);
+        for (int i = 1; i <= 5; i++) {
+            queue.add(i);
+        }
+
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void testTagsTravelWithElements() {
+        queue = new BufferWithFifoEviction<Integer>(10, countCost);
+        queue.add(1, 0, 7);
+        queue.add(2, 0, 0);
+        queue.add(3, 0, 1000);
+
+        List<Integer> result = new ArrayList<Integer>();
+        List<Integer> tags = new ArrayList<Integer>();
+        assertEquals(3, queue.drainTo(result, 10, tags));
+        assertEquals(Arrays.asList(1, 2, 3), result);
+        assertEquals(Arrays.asList(7, 0, 1000), tags);
+        // Tags cost nothing
+        assertEquals(0, queue.cost());
+    }
+
 
 }
@@ -0,0 +1,140 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.apache.logging.log4j.Level;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BufferWithLevelEvictionTest {
+
+    private static final int ERROR = Level.ERROR.intLevel();
+    private static final int WARN = Level.WARN.intLevel();
+    private static final int INFO = Level.INFO.intLevel();
+    private static final int DEBUG = Level.DEBUG.intLevel();
+
+    private CostBoundedConcurrentQueue.CostAssigner<String> countCost =
+        new CostBoundedConcurrentQueue.CostAssigner<String>() {
+            @Override
+            public long cost(String e) {
+                return 1;
+            }
+        };
+
+    private static List<String> drain(BufferWithLevelEviction<String> queue) {
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result);
+        return result;
+    }
+
+    @Test
+    public void testDrainKeepsInsertionOrder() {
+        BufferWithLevelEviction<String> queue = new BufferWithLevelEviction<String>(10, countCost);
+        queue.add("debug1", DEBUG);
+        queue.add("error1", ERROR);
+        queue.add("info1", INFO);
+        queue.add("debug2", DEBUG);
+        queue.add("warn1", WARN);
+
+        assertEquals(5, queue.size());
+        assertEquals(Arrays.asList("debug1", "error1", "info1", "debug2", "warn1"), drain(queue));
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testTagsTravelWithElements() {
+        BufferWithLevelEviction<String> queue = new BufferWithLevelEviction<String>(2, countCost);
+        queue.add("debug1", DEBUG, 1);
+        queue.add("error1", ERROR, 2);
+        queue.add("info1", INFO, 3);
+
+        List<String> result = new ArrayList<String>();
+        List<Integer> tags = new ArrayList<Integer>();
+        queue.drainTo(result, 10, tags);
+        assertEquals(Arrays.asList("error1", "info1"), result);
+        assertEquals(Arrays.asList(2, 3), tags);
+    }
+
+    @Test
+    public void testEvictsLeastSevereFirst() {
+        BufferWithLevelEviction<String> queue = new BufferWithLevelEviction<String>(3, countCost);
+        queue.add("error1", ERROR);
+        queue.add("debug1", DEBUG);
+        queue.add("info1", INFO);
+        queue.add("debug2", DEBUG);
+        assertTrue(queue.add("error2", ERROR));
+
+        assertEquals(Arrays.asList("error1", "info1", "error2"), drain(queue));
+    }
+
+    @Test
+    public void testFifoWithinLevel() {
+        BufferWithLevelEviction<String> queue = new BufferWithLevelEviction<String>(2, countCost);
+        queue.add("info1", INFO);
+        queue.add("info2", INFO);
+        queue.add("info3", INFO);
+
+        assertEquals(Arrays.asList("info2", "info3"), drain(queue));
+    }
+
+    @Test
+    public void testNeverEvictsMoreSevere() {
+        BufferWithLevelEviction<String> queue = new BufferWithLevelEviction<String>(2, countCost);
+        queue.add("error1", ERROR);
+        queue.add("warn1", WARN);
+
+        assertFalse(queue.add("debug1", DEBUG));
+        assertTrue(queue.add("warn2", WARN));
+
+        assertEquals(Arrays.asList("error1", "warn2"), drain(queue));
+    }
+
+    @Test
+    public void testKeepsAllWhenEvictionCannotMakeRoom() {
+        BufferWithLevelEviction<String> queue = new BufferWithLevelEviction<String>(4,
+            new CostBoundedConcurrentQueue.CostAssigner<String>() {
+                @Override
+                public long cost(String e) {
+                    return e.length();
+                }
+            });
+        queue.add("eee", ERROR);
+        queue.add("d", DEBUG);
+
+        // Evicting the debug message alone would not make room, so it stays
+        assertFalse(queue.add("ww", WARN));
+        assertEquals(0, queue.getEvictions().getCount());
+        assertEquals(Arrays.asList("eee", "d"), drain(queue));
+    }
+}
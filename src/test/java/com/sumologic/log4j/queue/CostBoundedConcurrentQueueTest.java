@@ -120,4 +120,65 @@ public class CostBoundedConcurrentQueueTest {
         assertEquals(0, queue.cost());
 
     }
+
+    @Test
+    public void testCostAssignedOnce() {
+        final int[] calls = {0};
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(1000, new CostAssigner<String>() {
+                    @Override
+                    public long cost(String e) {
+                        calls[0]++;
+                        return e.length();
+                    }
+                });
+
+        queue.offer(stringOfSize(10));
+        queue.offer(stringOfSize(20));
+        queue.offer(stringOfSize(30));
+        queue.poll();
+
+        List<String> list = new ArrayList<String>(2);
+        queue.drainTo(list);
+
+        assertEquals(3, calls[0]);
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testEvictRun() {
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(100, sizeElements);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(queue.offer(stringOfSize(i)));
+        }
+
+        EvictionCounter counter = new EvictionCounter();
+        assertEquals(3, queue.evict(5, counter));
+        assertEquals(3, counter.getCount());
+        assertEquals(1 + 2 + 3, counter.getCost());
+        assertEquals(4 + 5, queue.cost());
+
+        List<String> result = new ArrayList<String>();
+        queue.drainTo(result);
+        assertEquals(stringOfSize(4), result.get(0));
+    }
+
+    @Test
+    public void testEvictLargeHead() {
+        CostBoundedConcurrentQueue<String> queue =
+                new CostBoundedConcurrentQueue<String>(100, sizeElements);
+        assertTrue(queue.offer(stringOfSize(10)));
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(stringOfSize(1)));
+        }
+
+        // The head alone frees enough, whatever the average cost
+        EvictionCounter counter = new EvictionCounter();
+        assertEquals(1, queue.evict(10, counter));
+        assertEquals(1, counter.getCount());
+        assertEquals(10, counter.getCost());
+        assertEquals(8, queue.cost());
+        assertEquals(8, queue.size());
+    }
 }
@@ -0,0 +1,192 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.sumologic.log4j.queue.CostBoundedConcurrentQueue.CostAssigner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CostBoundedRingQueueTest {
+
+    public CostAssigner<String> sizeElements = new CostAssigner<String>() {
+        @Override
+        public long cost(String e) {
+            return e.length();
+        }
+    };
+
+    public String stringOfSize(int n) {
+        StringBuffer buf = new StringBuffer(n);
+        for (int i = 0; i < n; i++) {
+            buf.append('*');
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testInsertBeyondCapacity() {
+        CostBoundedRingQueue<String> queue =
+                new CostBoundedRingQueue<String>(20, 16, sizeElements);
+        String theString = stringOfSize(10);
+        assertTrue(queue.offer(theString));
+        assertTrue(queue.offer(theString));
+        assertFalse(queue.offer(theString));
+
+        // Free up, try again
+        assertNotNull(queue.poll());
+        assertFalse(queue.offer(stringOfSize(11)));
+        assertTrue(queue.offer(stringOfSize(10)));
+    }
+
+    @Test
+    public void testInsertBeyondSlots() {
+        CostBoundedRingQueue<String> queue =
+                new CostBoundedRingQueue<String>(1000, 3, sizeElements);
+        assertEquals(4, queue.slots());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer("a"));
+        }
+        assertFalse(queue.offer("a"));
+        // A failed offer must not leak its reserved cost
+        assertEquals(4, queue.cost());
+
+        assertEquals("a", queue.poll());
+        assertTrue(queue.offer("b"));
+    }
+
+    @Test
+    public void testSizeAndCapacity() {
+        CostBoundedRingQueue<String> queue =
+                new CostBoundedRingQueue<String>(1000, 16, sizeElements);
+
+        queue.offer(stringOfSize(10));
+        assertEquals(1, queue.size());
+        assertEquals(10, queue.cost());
+
+        queue.offer(stringOfSize(127));
+        assertEquals(2, queue.size());
+        assertEquals(10 + 127, queue.cost());
+
+        queue.poll();
+        assertEquals(1, queue.size());
+        assertEquals(127, queue.cost());
+
+        queue.poll();
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDrainToWrapsAround() {
+        CostBoundedRingQueue<String> queue =
+                new CostBoundedRingQueue<String>(1000, 4, sizeElements);
+
+        List<String> list = new ArrayList<String>();
+        for (int lap = 0; lap < 5; lap++) {
+            queue.offer("x" + lap);
+            queue.offer("y" + lap);
+            queue.offer("z" + lap);
+
+            list.clear();
+            assertEquals(3, queue.drainTo(list));
+            assertEquals("x" + lap, list.get(0));
+            assertEquals("z" + lap, list.get(2));
+            assertEquals(0, queue.cost());
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int numThreads = 8;
+        final int perThread = 10000;
+        final CostBoundedRingQueue<String> queue =
+                new CostBoundedRingQueue<String>(Long.MAX_VALUE, numThreads * perThread, sizeElements);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        queue.offer("m");
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(numThreads * perThread, queue.size());
+        assertEquals(numThreads * perThread, queue.cost());
+
+        List<String> list = new ArrayList<String>();
+        assertEquals(numThreads * perThread, queue.drainTo(list));
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testEvictRun() {
+        CostBoundedRingQueue<String> queue =
+                new CostBoundedRingQueue<String>(100, 8, sizeElements);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(queue.offer(stringOfSize(i)));
+        }
+
+        EvictionCounter counter = new EvictionCounter();
+        assertEquals(3, queue.evict(5, counter));
+        assertEquals(3, counter.getCount());
+        assertEquals(1 + 2 + 3, counter.getCost());
+        assertEquals(4 + 5, queue.cost());
+        assertEquals(stringOfSize(4), queue.poll());
+
+        // Always evicts at least one element, and stops when empty
+        assertEquals(1, queue.evict(0, counter));
+        assertEquals(0, queue.evict(100, counter));
+        assertEquals(0, queue.cost());
+        assertTrue(queue.offer(stringOfSize(10)));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.MemoryPoolMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeapPressureMonitorTest {
+
+    private BufferWithFifoEviction<Integer> queue;
+
+    @Before
+    public void setUp() {
+        queue = new BufferWithFifoEviction<Integer>(100,
+                new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                    @Override
+                    public long cost(Integer e) {
+                        return 1;
+                    }
+                });
+    }
+
+    @Test
+    public void testShrinkAndRestore() {
+        for (int i = 0; i < 100; i++) {
+            queue.add(i);
+        }
+
+        HeapPressureMonitor monitor = new HeapPressureMonitor(queue, 85, 25);
+        monitor.onPressure();
+
+        assertTrue(monitor.isUnderPressure());
+        assertEquals(25, queue.getCapacity());
+        assertEquals(25, queue.size());
+
+        monitor.onRelief();
+
+        assertFalse(monitor.isUnderPressure());
+        assertEquals(100, queue.getCapacity());
+        assertEquals(25, queue.size());
+    }
+
+    @Test
+    public void testStartAndStop() {
+        HeapPressureMonitor monitor = new HeapPressureMonitor(queue, 85);
+        monitor.start();
+        monitor.stop();
+
+        assertFalse(monitor.isUnderPressure());
+        assertEquals(100, queue.getCapacity());
+    }
+
+    @Test
+    public void testThresholdSharedAndRestored() {
+        MemoryPoolMXBean pool = HeapPressureMonitor.findTenuredPool();
+        Assume.assumeNotNull(pool);
+        long max = pool.getUsage().getMax();
+        Assume.assumeTrue(max > 0);
+
+        long original = pool.getCollectionUsageThreshold();
+        pool.setCollectionUsageThreshold(max * 95 / 100);
+        HeapPressureMonitor first = new HeapPressureMonitor(queue, 85);
+        HeapPressureMonitor second = new HeapPressureMonitor(queue, 90);
+        try {
+            assertTrue(first.start());
+            assertTrue(second.start());
+            assertEquals(max * 85 / 100, pool.getCollectionUsageThreshold());
+
+            first.stop();
+            assertEquals(max * 90 / 100, pool.getCollectionUsageThreshold());
+
+            second.stop();
+            assertEquals(max * 95 / 100, pool.getCollectionUsageThreshold());
+        } finally {
+            first.stop();
+            second.stop();
+            pool.setCollectionUsageThreshold(original);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        new HeapPressureMonitor(queue, 100);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapBufferWithFifoEvictionTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    private static List<String> strings(List<byte[]> list) {
+        List<String> result = new ArrayList<String>();
+        for (byte[] e : list) {
+            result.add(new String(e));
+        }
+        return result;
+    }
+
+    @Test
+    public void testDrainTo() {
+        OffHeapBufferWithFifoEviction queue = new OffHeapBufferWithFifoEviction(100, 16);
+        queue.add(bytes("hello"));
+        queue.add(bytes("world"));
+        assertEquals(2, queue.size());
+        assertEquals(2 * (4 + 5), queue.cost());
+
+        List<byte[]> result = new ArrayList<byte[]>();
+        assertEquals(2, queue.drainTo(result));
+        assertArrayEquals(bytes("hello"), result.get(0));
+        assertArrayEquals(bytes("world"), result.get(1));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testTagsTravelWithElements() {
+        OffHeapBufferWithFifoEviction queue = new OffHeapBufferWithFifoEviction(100, 16);
+        queue.add(bytes("hello"), 0, 70000);
+        queue.add(bytes("world"), 0, 0);
+        // A tagged message has its tag right after the header
+        assertEquals(2 * (4 + 5) + 4, queue.cost());
+
+        List<byte[]> result = new ArrayList<byte[]>();
+        List<Integer> tags = new ArrayList<Integer>();
+        assertEquals(2, queue.drainTo(result, 10, tags));
+        assertEquals(Arrays.asList("hello", "world"), strings(result));
+        assertEquals(Arrays.asList(70000, 0), tags);
+    }
+
+    @Test
+    public void testWrapAroundSegmentsAndArena() {
+        // Arena of 30 bytes in segments of 7, so records straddle segments and the arena end
+        OffHeapBufferWithFifoEviction queue = new OffHeapBufferWithFifoEviction(30, 7);
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (int i = 0; i < 50; i++) {
+            String message = "message-" + i;
+            assertTrue(queue.add(bytes(message)));
+
+            result.clear();
+            queue.drainTo(result);
+            assertEquals(1, result.size());
+            assertEquals(message, new String(result.get(0)));
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        // Each record costs 4 + 2 bytes, so 3 fit
+        OffHeapBufferWithFifoEviction queue = new OffHeapBufferWithFifoEviction(18, 5);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(queue.add(bytes("m" + i)));
+        }
+
+        List<byte[]> result = new ArrayList<byte[]>();
+        queue.drainTo(result);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("m3");
+        expected.add("m4");
+        expected.add("m5");
+        assertEquals(expected, strings(result));
+    }
+
+    @Test
+    public void testInsertLarge() {
+        OffHeapBufferWithFifoEviction queue = new OffHeapBufferWithFifoEviction(10);
+        assertTrue(queue.add(bytes("ab")));
+        assertFalse(queue.add(bytes("this is too long")));
+        assertEquals(1, queue.size());
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolBufferWithFifoEvictionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> drain(BufferWithEviction<byte[]> queue) {
+        List<byte[]> drained = new ArrayList<byte[]>();
+        queue.drainTo(drained);
+
+        List<String> result = new ArrayList<String>();
+        for (byte[] e : drained) {
+            result.add(new String(e));
+        }
+        return result;
+    }
+
+    private static int numSegments(File directory) {
+        int segments = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".spool")) segments++;
+        }
+        return segments;
+    }
+
+    @Test
+    public void testDrainTo() throws Exception {
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(1000, folder.getRoot());
+        queue.add("hello".getBytes());
+        queue.add("world".getBytes());
+        assertEquals(2, queue.size());
+        assertEquals(2 * (4 + 5), queue.cost());
+
+        assertEquals(Arrays.asList("hello", "world"), drain(queue));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testReplayUncommitted() throws Exception {
+        File directory = folder.getRoot();
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(1000, directory, 64);
+        for (int i = 0; i < 10; i++) {
+            queue.add(("message-" + i).getBytes());
+        }
+        assertEquals(10, drain(queue).size());
+        queue.commit();
+
+        queue.add("sent-but-not-acked".getBytes());
+        assertEquals(1, drain(queue).size());
+        queue.add("never-drained".getBytes());
+
+        SpoolBufferWithFifoEviction reopened = new SpoolBufferWithFifoEviction(1000, directory, 64);
+        assertEquals(2, reopened.size());
+        assertEquals(Arrays.asList("sent-but-not-acked", "never-drained"), drain(reopened));
+
+        reopened.commit();
+        assertEquals(0, new SpoolBufferWithFifoEviction(1000, directory, 64).size());
+    }
+
+    @Test
+    public void testCommitUpToPosition() throws Exception {
+        File directory = folder.getRoot();
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(1000, directory, 64);
+        for (int i = 0; i < 10; i++) {
+            queue.add(("message-" + i).getBytes());
+        }
+        List<byte[]> first = new ArrayList<byte[]>();
+        assertEquals(6, queue.drainTo(first, 6));
+        Object afterFirst = queue.getDrainedPosition();
+        List<byte[]> second = new ArrayList<byte[]>();
+        assertEquals(4, queue.drainTo(second, 6));
+
+        // The first batch is acknowledged while the second is still in flight
+        queue.commit(afterFirst);
+        assertEquals(Arrays.asList("message-6", "message-7", "message-8", "message-9"),
+                drain(new SpoolBufferWithFifoEviction(1000, directory, 64)));
+        assertEquals(2, numSegments(directory));
+
+        // And handed out again once the second failed
+        queue.rewind();
+        assertEquals(4, queue.size());
+        assertEquals(Arrays.asList("message-6", "message-7", "message-8", "message-9"), drain(queue));
+    }
+
+    @Test
+    public void testReplayKeepsTags() throws Exception {
+        File directory = folder.getRoot();
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(1000, directory);
+        queue.add("routed".getBytes(), 0, 300);
+        queue.add("plain".getBytes(), 0, 0);
+        // The tag is stored next to the message, which is handed out as it was added
+        assertEquals(2 * 4 + 4 + "routed".length() + "plain".length(), queue.cost());
+
+        SpoolBufferWithFifoEviction reopened = new SpoolBufferWithFifoEviction(1000, directory);
+        List<byte[]> drained = new ArrayList<byte[]>();
+        List<Integer> tags = new ArrayList<Integer>();
+        assertEquals(2, reopened.drainTo(drained, Integer.MAX_VALUE, tags));
+        assertEquals("routed", new String(drained.get(0)));
+        assertEquals("plain", new String(drained.get(1)));
+        assertEquals(Arrays.asList(300, 0), tags);
+    }
+
+    @Test
+    public void testCommitDeletesSegments() throws Exception {
+        File directory = folder.getRoot();
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(10000, directory, 32);
+        for (int i = 0; i < 20; i++) {
+            queue.add(("message-" + i).getBytes());
+        }
+        assertTrue(numSegments(directory) > 5);
+
+        assertEquals(20, drain(queue).size());
+        queue.commit();
+        assertEquals(1, numSegments(directory));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // Each record costs 4 + 2 bytes, so 3 fit
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(18, folder.getRoot(), 12);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(queue.add(("m" + i).getBytes()));
+        }
+
+        assertEquals(Arrays.asList("m3", "m4", "m5"), drain(queue));
+    }
+
+    @Test
+    public void testEvictionKeepsUncommitted() throws Exception {
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(18, folder.getRoot(), 12);
+        queue.add("m1".getBytes());
+        queue.add("m2".getBytes());
+        assertEquals(Arrays.asList("m1", "m2"), drain(queue));
+
+        // Only the unread messages make room for new ones
+        assertTrue(queue.add("m3".getBytes()));
+        assertTrue(queue.add("m4".getBytes()));
+        assertTrue(queue.add("m5".getBytes()));
+        assertEquals(2, queue.getEvictions().getCount());
+
+        // Evicted messages are skipped by a rewind and by a replay alike
+        assertTrue(queue.rewind());
+        assertEquals(Arrays.asList("m1", "m2", "m5"), drain(queue));
+        SpoolBufferWithFifoEviction reopened = new SpoolBufferWithFifoEviction(18, folder.getRoot(), 12);
+        assertEquals(Arrays.asList("m1", "m2", "m5"), drain(reopened));
+
+        // Their room is reclaimed once what was in flight before them is committed
+        reopened.commit();
+        assertEquals(0, reopened.size());
+        assertTrue(reopened.hasRoomFor(12));
+    }
+
+    @Test
+    public void testRefusesWhatOnlyFitsByEvictingUncommitted() throws Exception {
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(12, folder.getRoot(), 12);
+        queue.add("m1".getBytes());
+        queue.add("m2".getBytes());
+        assertEquals(Arrays.asList("m1", "m2"), drain(queue));
+
+        assertFalse(queue.add("m3".getBytes()));
+        assertEquals(0, queue.getEvictions().getCount());
+
+        queue.commit();
+        assertTrue(queue.add("m3".getBytes()));
+        assertEquals(Arrays.asList("m3"), drain(queue));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        File directory = folder.getRoot();
+        SpoolBufferWithFifoEviction queue = new SpoolBufferWithFifoEviction(1000, directory, 32);
+        for (int i = 0; i < 5; i++) {
+            queue.add(("message-" + i).getBytes());
+        }
+        assertEquals(2, queue.drainTo(new ArrayList<byte[]>(), 2));
+        queue.close();
+
+        assertTrue(queue.isClosed());
+        assertFalse(queue.add("late".getBytes()));
+        assertEquals(0, drain(queue).size());
+
+        SpoolBufferWithFifoEviction reopened = new SpoolBufferWithFifoEviction(1000, directory, 32);
+        assertEquals(5, drain(reopened).size());
+    }
+}
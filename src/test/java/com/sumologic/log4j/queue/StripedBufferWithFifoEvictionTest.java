@@ -0,0 +1,135 @@
+/**
+ *    _____ _____ _____ _____    __    _____ _____ _____ _____
+ *   |   __|  |  |     |     |  |  |  |     |   __|     |     |
+ *   |__   |  |  | | | |  |  |  |  |__|  |  |  |  |-   -|   --|
+ *   |_____|_____|_|_|_|_____|  |_____|_____|_____|_____|_____|
+ *
+ *                UNICORNS AT WARP SPEED SINCE 2010
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.sumologic.log4j.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StripedBufferWithFifoEvictionTest {
+
+    private StripedBufferWithFifoEviction<Integer> queue;
+
+    private CostBoundedConcurrentQueue.CostAssigner<Integer> countCost;
+
+
+    @Before
+    public void setUp() {
+        countCost =
+            new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                @Override
+                public long cost(Integer e) {
+                    return 1;
+                }
+            };
+    }
+
+    @Test
+    public void testSingleThreadUsesWholeCapacity() {
+        queue = new StripedBufferWithFifoEviction<Integer>(10, 4, countCost);
+        for (int i = 1; i <= 12; i++) {
+            assertTrue(queue.add(i));
+        }
+
+        assertEquals(10, queue.size());
+        assertEquals(10, queue.cost());
+
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result);
+
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7, 8, 9, 10, 11, 12), result);
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testInsertLarge() {
+        queue = new StripedBufferWithFifoEviction<Integer>(10, 4,
+                new CostBoundedConcurrentQueue.CostAssigner<Integer>() {
+                    @Override
+                    public long cost(Integer e) {
+                        return e;
+                    }
+                });
+
+        assertTrue(queue.add(5));
+        assertFalse(queue.add(11));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testConcurrentProducersStayWithinCapacity() throws Exception {
+        final int numThreads = 8;
+        final int perThread = 5000;
+        queue = new StripedBufferWithFifoEviction<Integer>(1000, 4, countCost);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        queue.add(i);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Enforcement is approximate while producers race, but settles at the capacity
+        assertTrue(queue.cost() <= 1000 + numThreads);
+
+        List<Integer> result = new ArrayList<Integer>();
+        assertEquals(queue.size(), queue.drainTo(result));
+        assertEquals(0, queue.cost());
+    }
+
+    @Test
+    public void testShrinkCapacity() {
+        queue = new StripedBufferWithFifoEviction<Integer>(10, 4, countCost);
+        for (int i = 1; i <= 10; i++) {
+            queue.add(i);
+        }
+
+        queue.setCapacity(3);
+        assertEquals(3, queue.cost());
+
+        List<Integer> result = new ArrayList<Integer>();
+        queue.drainTo(result);
+        assertEquals(Arrays.asList(8, 9, 10), result);
+    }
+}
@@ -32,9 +32,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Author: Jose Muniz (jose@sumologic.com)
@@ -44,7 +44,7 @@ import java.util.List;
 public class AggregatingHttpHandler implements HttpHandler {
 
     private static String REQUEST_ENCODING = "UTF-8";
-    private List<MaterializedHttpRequest> exchanges = new ArrayList<MaterializedHttpRequest>();
+    private List<MaterializedHttpRequest> exchanges = new CopyOnWriteArrayList<MaterializedHttpRequest>();
 
     // Extract and materialize HTTP Request Body into a String
     private String readRequestBody(HttpExchange httpExchange) throws IOException {